@@ -16,26 +16,40 @@
 package com.example.android.pets;
 
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.Toast;
 
 import com.example.android.pets.adapter.PetCursorAdapter;
+import com.example.android.pets.adapter.PetSectionIndex;
+import com.example.android.pets.adapter.PetSnapshotAdapter;
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetOperationLog;
+import com.example.android.pets.data.PetSnapshot;
+import com.example.android.pets.data.PetSnapshotLoader;
+import com.example.android.pets.data.QueryBudget;
 
 /**
  * Displays list of pets that were entered and stored in the app.
@@ -45,9 +59,46 @@ public class CatalogActivity extends AppCompatActivity implements
 
     private static final String TAG = CatalogActivity.class.getSimpleName();
     private static final int PET_LOADER = 0;
+    private static final int PET_SNAPSHOT_LOADER = 2;
+    private static final int PET_SECTIONS_LOADER = 3;
+
+    // Setting that renders the catalog from a PetSnapshot instead of a live Cursor, so no
+    // CursorWindow is kept open while browsing. Off by default, toggled from the menu.
+    private static final String PREF_SNAPSHOT_MODE = "catalog_snapshot_mode";
+
+    // Keys for the list scroll position saved across configuration changes
+    private static final String STATE_FIRST_VISIBLE_POSITION = "first_visible_position";
+    private static final String STATE_FIRST_VISIBLE_TOP = "first_visible_top";
 
     // Global fields
     private PetCursorAdapter mCursorAdapter;
+    private PetSnapshotAdapter mSnapshotAdapter;
+    private ListView mPetListView;
+    // Snapshot mode setting read when the activity was created
+    private boolean mSnapshotMode;
+
+    // Scroll position to restore once the loader delivers data, or INVALID_POSITION if none
+    private int mPendingScrollPosition = ListView.INVALID_POSITION;
+    private int mPendingScrollTop;
+
+    // Provider work allowed per user action, checked in debug builds. Showing the catalog takes
+    // the pets query and the section counts query, whose cursors the loaders keep open, and
+    // rotating takes none since the loaders keep their data across configuration changes.
+    // Deleting all pets is a single delete, with no count query first.
+    private static final QueryBudget LAUNCH_BUDGET =
+            new QueryBudget(2, 0, QueryBudget.UNLIMITED, 2);
+    private static final QueryBudget ROTATE_BUDGET = new QueryBudget(0, 0, 0);
+    private static final QueryBudget INSERT_DUMMY_BUDGET =
+            new QueryBudget(1, 1, QueryBudget.UNLIMITED);
+    private static final QueryBudget DELETE_ALL_BUDGET =
+            new QueryBudget(0, 1, QueryBudget.UNLIMITED);
+    // Changing or deleting the selected pets is a single batch call, whatever the selection
+    private static final QueryBudget BATCH_BUDGET = new QueryBudget(0, 1, QueryBudget.UNLIMITED);
+
+    // Flow from onCreate until the catalog is shown, checked against LAUNCH_BUDGET or
+    // ROTATE_BUDGET. The loaders query on their own threads, so it is an async flow.
+    private PetOperationLog.Flow mLoadFlow;
+    private QueryBudget mLoadFlowBudget;
 
     // Projection specifies which columns from db the query will actually use
     private String[] mProjection = {
@@ -55,13 +106,28 @@ public class CatalogActivity extends AppCompatActivity implements
             PetEntry.COLUMN_PET_NAME,
             PetEntry.COLUMN_PET_BREED,
             PetEntry.COLUMN_PET_GENDER,
-            PetEntry.COLUMN_PET_WEIGHT};
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_NEXT_MEDICAL_DUE_DATE};
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
+        mSnapshotMode = PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(PREF_SNAPSHOT_MODE, false);
+
+        // A loader that is still there was kept across a configuration change, so the catalog
+        // is shown again without a query. After process death it has to load again.
+        if (getLoaderManager().getLoader(
+                mSnapshotMode ? PET_SNAPSHOT_LOADER : PET_LOADER) != null) {
+            mLoadFlow = PetOperationLog.beginAsyncFlow("Rotate catalog");
+            mLoadFlowBudget = ROTATE_BUDGET;
+        } else {
+            mLoadFlow = PetOperationLog.beginAsyncFlow("Launch catalog");
+            mLoadFlowBudget = LAUNCH_BUDGET;
+        }
+
         // Setup FAB to open EditorActivity to add a new Pet.
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -74,25 +140,41 @@ public class CatalogActivity extends AppCompatActivity implements
 
         // Find ListView to populate
         ListView petListView = (ListView) findViewById(R.id.list_view_pet);
+        mPetListView = petListView;
 
         // Find empty view and show only when the list has zero items
         View emptyListView = findViewById(R.id.empty_view);
         petListView.setEmptyView(emptyListView);
 
-        // Call ContentResolver query() method, which will call PetProvider query() method
-        Cursor cursor = getContentResolver().query(
-                PetEntry.CONTENT_URI,   // Content URI
-                mProjection,             // Project
-                null,                   // Selection
-                null,                   // SelectionArgs
-                null);                  // Sort Order
+        ListAdapter adapter;
+        if (mSnapshotMode) {
+            // Instantiate SnapshotAdapter, filled in once the snapshot loader finishes
+            mSnapshotAdapter = new PetSnapshotAdapter(this);
+            adapter = mSnapshotAdapter;
+        } else {
+            // Instantiate CursorAdapter without a cursor. The loader queries PetProvider off the
+            // main thread, and keeps its cursor across configuration changes.
+            mCursorAdapter = new PetCursorAdapter(this, null);
+            adapter = mCursorAdapter;
+        }
+        petListView.setAdapter(adapter);
+
+        // Both adapters index the list by the alphabet sections the sections loader delivers
+        petListView.setFastScrollEnabled(true);
 
-        // Instantiate CursorAdapter
-        mCursorAdapter = new PetCursorAdapter(this, cursor);
-        petListView.setAdapter(mCursorAdapter);
+        // The list is empty until the loader delivers, so remember where the user had scrolled
+        if (savedInstanceState != null) {
+            mPendingScrollPosition = savedInstanceState.getInt(
+                    STATE_FIRST_VISIBLE_POSITION, ListView.INVALID_POSITION);
+            mPendingScrollTop = savedInstanceState.getInt(STATE_FIRST_VISIBLE_TOP);
+        }
 
         // Setup item click listener to open EditorActivity to edit an existing Pet,
         // passing the content URI for that Pet.
+        // A long press starts selecting pets for a batch change or delete
+        petListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        petListView.setMultiChoiceModeListener(mMultiChoiceModeListener);
+
         petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -107,7 +189,35 @@ public class CatalogActivity extends AppCompatActivity implements
         });
 
         // Prepare the loader
-        getLoaderManager().initLoader(PET_LOADER, null, this);
+        if (mSnapshotMode) {
+            getLoaderManager().initLoader(PET_SNAPSHOT_LOADER, null, mSnapshotLoaderCallbacks);
+        } else {
+            getLoaderManager().initLoader(PET_LOADER, null, this);
+        }
+        getLoaderManager().initLoader(PET_SECTIONS_LOADER, null, mSectionsLoaderCallbacks);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The catalog may be left before it was ever shown
+        mLoadFlow.cancel();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        // Save the scroll position of the list, or keep a pending one that wasn't applied yet
+        if (mPendingScrollPosition != ListView.INVALID_POSITION) {
+            outState.putInt(STATE_FIRST_VISIBLE_POSITION, mPendingScrollPosition);
+            outState.putInt(STATE_FIRST_VISIBLE_TOP, mPendingScrollTop);
+        } else {
+            View firstVisibleView = mPetListView.getChildAt(0);
+            outState.putInt(STATE_FIRST_VISIBLE_POSITION, mPetListView.getFirstVisiblePosition());
+            outState.putInt(STATE_FIRST_VISIBLE_TOP,
+                    firstVisibleView == null ? 0 : firstVisibleView.getTop());
+        }
     }
 
     @Override
@@ -115,6 +225,7 @@ public class CatalogActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_snapshot_mode).setChecked(mSnapshotMode);
         return true;
     }
 
@@ -128,8 +239,8 @@ public class CatalogActivity extends AppCompatActivity implements
                 return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
-                if (getContentResolver().query(PetEntry.CONTENT_URI, null, null, null, null)
-                        .getCount() > 0) {
+                // The list already holds every pet, so there is no need to query for them
+                if (mPetListView.getAdapter().getCount() > 0) {
                     // If there is at least 1 Pet in the database, then show confirmation dialog
                     // for "Delete All Pets"
                     showDeleteAllPetsConfirmationDialog();
@@ -138,6 +249,14 @@ public class CatalogActivity extends AppCompatActivity implements
                     Toast.makeText(this, R.string.catalog_no_pets_to_delete, Toast.LENGTH_SHORT).show();
                 }
                 return true;
+            // Respond to a click on the "Open kiosk" menu option
+            case R.id.action_open_kiosk:
+                startActivity(new Intent(this, KioskActivity.class));
+                return true;
+            // Respond to a click on the "Snapshot mode" menu option
+            case R.id.action_snapshot_mode:
+                setSnapshotMode(!mSnapshotMode);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -149,18 +268,21 @@ public class CatalogActivity extends AppCompatActivity implements
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 
+        // Query the summary URI, which includes each pet's medical status, so the list can show
+        // due badges without a query per pet
         return new CursorLoader(this,   // Parent activity content
-                PetEntry.CONTENT_URI,   // Provider content URI to query
+                PetEntry.SUMMARY_URI,   // Provider content URI to query
                 mProjection,            // Columns to include in Cursor
                 null,                   // No selection clause
                 null,                   // No selection args
-                null);                  // Default sort order
+                PetEntry.SECTION_SORT_ORDER);   // Sections order, for the fast scroll index
     }
 
     // called when a loader has finished loading data
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         mCursorAdapter.swapCursor(data);
+        onCatalogLoaded();
     }
 
     // called when a previously created loader is being reset (when you call destroyLoader(int)
@@ -170,8 +292,163 @@ public class CatalogActivity extends AppCompatActivity implements
         mCursorAdapter.swapCursor(null);
     }
 
-    // Add a pet to database
+    /*
+    * Loader callbacks used in snapshot mode. The loader copies the catalog into a PetSnapshot
+    * and closes its cursor before delivering the result.
+    * */
+    private LoaderManager.LoaderCallbacks<PetSnapshot> mSnapshotLoaderCallbacks =
+            new LoaderManager.LoaderCallbacks<PetSnapshot>() {
+                @Override
+                public Loader<PetSnapshot> onCreateLoader(int id, Bundle args) {
+                    return new PetSnapshotLoader(CatalogActivity.this);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<PetSnapshot> loader, PetSnapshot data) {
+                    mSnapshotAdapter.swapSnapshot(data);
+                    onCatalogLoaded();
+                }
+
+                @Override
+                public void onLoaderReset(Loader<PetSnapshot> loader) {
+                    mSnapshotAdapter.swapSnapshot(null);
+                }
+            };
+
+    /*
+    * Loader callbacks for the number of pets in each alphabet section. The provider keeps the
+    * counts in a table of its own, so this is a read of a few rows whatever the catalog size.
+    * */
+    private LoaderManager.LoaderCallbacks<Cursor> mSectionsLoaderCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
+                @Override
+                public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+                    return new CursorLoader(CatalogActivity.this, PetEntry.SECTIONS_URI,
+                            null, null, null, null);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+                    swapSectionIndex(PetSectionIndex.fromCursor(data));
+                }
+
+                @Override
+                public void onLoaderReset(Loader<Cursor> loader) {
+                    swapSectionIndex(null);
+                }
+            };
+
+    /*
+    * Saves the snapshot mode setting and recreates the activity to show the catalog in that
+    * mode. The loader of the current mode is destroyed first, so its data isn't kept around.
+    * */
+    private void setSnapshotMode(boolean snapshotMode) {
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putBoolean(PREF_SNAPSHOT_MODE, snapshotMode)
+                .apply();
+        getLoaderManager().destroyLoader(mSnapshotMode ? PET_SNAPSHOT_LOADER : PET_LOADER);
+        recreate();
+    }
+
+    // Gives the section index to the adapter in use
+    private void swapSectionIndex(PetSectionIndex sectionIndex) {
+        if (mSnapshotMode) {
+            mSnapshotAdapter.swapSectionIndex(sectionIndex);
+        } else {
+            mCursorAdapter.swapSectionIndex(sectionIndex);
+        }
+    }
+
+    /*
+    * Contextual action bar shown while pets are selected. The adapters have stable IDs, so the
+    * selection is read as pet IDs and sent to the provider in one batch call.
+    * */
+    private AbsListView.MultiChoiceModeListener mMultiChoiceModeListener =
+            new AbsListView.MultiChoiceModeListener() {
+                @Override
+                public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                                      boolean checked) {
+                    mode.setTitle(getString(R.string.catalog_selected_count,
+                            mPetListView.getCheckedItemCount()));
+                }
+
+                @Override
+                public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                    mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+                    return true;
+                }
+
+                @Override
+                public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                    return false;
+                }
+
+                @Override
+                public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                    switch (item.getItemId()) {
+                        case R.id.action_mark_selected_transferred:
+                            markSelectedPetsTransferred();
+                            mode.finish();
+                            return true;
+                        case R.id.action_delete_selected:
+                            showDeleteSelectedPetsConfirmationDialog(mode);
+                            return true;
+                    }
+                    return false;
+                }
+
+                @Override
+                public void onDestroyActionMode(ActionMode mode) {
+                }
+            };
+
+    /*
+    * Called when the adapter has been given new catalog data. Restores the saved scroll position
+    * and, the first time, checks the provider work needed since onCreate against its budget.
+    * */
+    private void onCatalogLoaded() {
+        if (mPendingScrollPosition != ListView.INVALID_POSITION) {
+            mPetListView.setSelectionFromTop(mPendingScrollPosition, mPendingScrollTop);
+            mPendingScrollPosition = ListView.INVALID_POSITION;
+        }
+
+        mLoadFlow.finish(mLoadFlowBudget);
+    }
+
+    /*
+    * Adds the dummy pet to the database, unless it is already in the shelter. Like every write
+    * from the catalog, it runs on a background thread so the UI never waits for the provider,
+    * e.g. while it is still warming up. The confirmation uses the application context since the
+    * activity may be gone by the time the write completes.
+    * */
     private void insertPet() {
+        final PetOperationLog.Flow flow = PetOperationLog.beginFlow("Insert dummy pet");
+        final Context context = getApplicationContext();
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                flow.enter();
+                try {
+                    return insertDummyPet(context.getContentResolver());
+                } finally {
+                    flow.exit();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean inserted) {
+                flow.finish(INSERT_DUMMY_BUDGET);
+                if (!inserted) {
+                    Toast.makeText(context, R.string.catalog_dummy_pet_exists,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute();
+    }
+
+    // Helper method for insertPet(), called on a background thread. Returns false if the dummy
+    // pet was already there.
+    private static boolean insertDummyPet(ContentResolver resolver) {
 
         // Create ContentValues object for a single pet
         ContentValues values = new ContentValues();
@@ -180,9 +457,21 @@ public class CatalogActivity extends AppCompatActivity implements
         values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
         values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
+        // Don't add the dummy pet again if it is already in the shelter
+        Bundle request = new Bundle();
+        request.putString(PetEntry.COLUMN_PET_NAME, "Toto");
+        request.putString(PetEntry.COLUMN_PET_BREED, "Terrier");
+        request.putInt(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        Bundle duplicates = resolver.call(PetEntry.CONTENT_URI,
+                PetContract.METHOD_FIND_DUPLICATES, null, request);
+        if (duplicates != null && duplicates.getLongArray(PetContract.EXTRA_IDS).length > 0) {
+            return false;
+        }
+
         // Insert a new row into database, returning ID of that new row
         //long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
-        getContentResolver().insert(PetEntry.CONTENT_URI, values);
+        resolver.insert(PetEntry.CONTENT_URI, values);
+        return true;
     }
 
     /*
@@ -213,14 +502,120 @@ public class CatalogActivity extends AppCompatActivity implements
         // Create and show the AlertDialog
         builder.create().show();
     }
+
+    /*
+    * Marks the selected pets as transferred. The provider updates them all in one transaction,
+    * and the status date it sets starts their archive delay.
+    * */
+    private void markSelectedPetsTransferred() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_STATUS, PetEntry.STATUS_TRANSFERRED);
+
+        Bundle request = new Bundle();
+        request.putLongArray(PetContract.EXTRA_IDS, mPetListView.getCheckedItemIds());
+        request.putParcelable(PetContract.EXTRA_VALUES, values);
+
+        final PetOperationLog.Flow flow = PetOperationLog.beginFlow("Transfer selected pets");
+        final Context context = getApplicationContext();
+        new AsyncTask<Bundle, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Bundle... requests) {
+                flow.enter();
+                try {
+                    return context.getContentResolver().call(PetEntry.CONTENT_URI,
+                            PetContract.METHOD_UPDATE_PETS_BY_ID, null, requests[0]);
+                } finally {
+                    flow.exit();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                flow.finish(BATCH_BUDGET);
+                Toast.makeText(context, context.getString(R.string.toast_confirm_pets_transferred,
+                        result.getInt(PetContract.EXTRA_PET_COUNT)), Toast.LENGTH_SHORT).show();
+            }
+        }.execute(request);
+    }
+
+    // Asks the user to confirm deleting the selected pets, and ends the given selection mode
+    // once they are deleted
+    private void showDeleteSelectedPetsConfirmationDialog(final ActionMode mode) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.delete_selected_dialog_msg)
+                .setPositiveButton(R.string.delete, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        deleteSelectedPets();
+                        mode.finish();
+                    }
+                })
+                .setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (dialog != null) {
+                            dialog.dismiss();
+                        }
+                    }
+                });
+        builder.create().show();
+    }
+
+    // Deletes the selected pets, and their medical records, in one transaction
+    private void deleteSelectedPets() {
+        Bundle request = new Bundle();
+        request.putLongArray(PetContract.EXTRA_IDS, mPetListView.getCheckedItemIds());
+
+        final PetOperationLog.Flow flow = PetOperationLog.beginFlow("Delete selected pets");
+        final Context context = getApplicationContext();
+        new AsyncTask<Bundle, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Bundle... requests) {
+                flow.enter();
+                try {
+                    return context.getContentResolver().call(PetEntry.CONTENT_URI,
+                            PetContract.METHOD_DELETE_PETS_BY_ID, null, requests[0]);
+                } finally {
+                    flow.exit();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                flow.finish(BATCH_BUDGET);
+                Toast.makeText(context, result.getInt(PetContract.EXTRA_PET_COUNT)
+                                + context.getString(R.string.toast_confirm_pets_deleted),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }.execute(request);
+    }
+
     /*
     * Delete all Pets from database
     * */
     private void deleteAllPets() {
 
-        int rowsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-        // Confirmation message that 1 Pet was deleted
-        Toast.makeText(this, rowsDeleted + getString(R.string.toast_confirm_pets_deleted),
-                Toast.LENGTH_SHORT).show();
+        final PetOperationLog.Flow flow = PetOperationLog.beginFlow("Delete all pets");
+        final Context context = getApplicationContext();
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                flow.enter();
+                try {
+                    return context.getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+                } finally {
+                    flow.exit();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Integer rowsDeleted) {
+                flow.finish(DELETE_ALL_BUDGET);
+                // Confirmation message with the number of Pets deleted
+                Toast.makeText(context,
+                        rowsDeleted + context.getString(R.string.toast_confirm_pets_deleted),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
     }
-}
\ No newline at end of file
+}
@@ -16,13 +16,16 @@
 package com.example.android.pets;
 
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AlertDialog;
@@ -38,6 +41,10 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.PetDuplicateCheckLoader;
+import com.example.android.pets.data.PetOperationLog;
+import com.example.android.pets.data.QueryBudget;
+
 import static com.example.android.pets.data.PetContract.PetEntry;
 
 /**
@@ -47,6 +54,7 @@ public class EditorActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final int EDITOR_PET_LOADER = 1;
+    private static final int DUPLICATE_CHECK_LOADER = 2;
 
     /* Global fields */
     // Content URI for the existing pet (null if it's a new pet)
@@ -73,6 +81,51 @@ public class EditorActivity extends AppCompatActivity implements
     // Boolean to track whether Pet has been edited (true) or not (false)
     private boolean mPetHasChanged = false;
 
+    // Values of the existing pet as loaded from the db, used to find out which fields the user
+    // actually changed so that only those columns are saved
+    private String mLoadedName = "";
+    private String mLoadedBreed = "";
+    private String mLoadedWeight = "";
+    private int mLoadedGender = PetEntry.GENDER_UNKNOWN;
+
+    // Provider work allowed per user action, checked in debug builds. Opening a pet reads its
+    // single row into the loader's cursor, and saving writes it once.
+    private static final QueryBudget OPEN_BUDGET = new QueryBudget(1, 0, 1, 1);
+    private static final QueryBudget SAVE_BUDGET = new QueryBudget(0, 1, 1);
+
+    // Flow from onCreate until an existing pet is shown, or null for a new pet. The loader
+    // queries on its own thread, so it is an async flow.
+    private PetOperationLog.Flow mOpenFlow;
+
+    /*
+    * Callbacks of the duplicate check that runs before a new pet is saved. The loader is kept
+    * across a rotation and delivers its answer to the activity shown by then, which saves the
+    * pet or asks the user about the likely duplicate.
+    * */
+    private final LoaderManager.LoaderCallbacks<String> mDuplicateCheckCallbacks =
+            new LoaderManager.LoaderCallbacks<String>() {
+                @Override
+                public Loader<String> onCreateLoader(int id, Bundle args) {
+                    return new PetDuplicateCheckLoader(EditorActivity.this, args);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<String> loader, String duplicateName) {
+                    // The answer is for one Save only
+                    getLoaderManager().destroyLoader(DUPLICATE_CHECK_LOADER);
+                    if (duplicateName != null) {
+                        showDuplicateConfirmationDialog(duplicateName);
+                    } else {
+                        savePet();
+                        finish();
+                    }
+                }
+
+                @Override
+                public void onLoaderReset(Loader<String> loader) {
+                }
+            };
+
     // Projection specifies which columns from db the query will actually use
     private String[] mProjection = {
             PetEntry._ID,
@@ -110,10 +163,15 @@ public class EditorActivity extends AppCompatActivity implements
             invalidateOptionsMenu();
         } else {
             setTitle(R.string.editor_activity_title_edit_pet);
+            mOpenFlow = PetOperationLog.beginAsyncFlow("Open pet");
         }
 
         // Prepare the loader
         getLoaderManager().initLoader(EDITOR_PET_LOADER, null, this);
+        // Reconnect to a duplicate check still running from before a rotation
+        if (getLoaderManager().getLoader(DUPLICATE_CHECK_LOADER) != null) {
+            getLoaderManager().initLoader(DUPLICATE_CHECK_LOADER, null, mDuplicateCheckCallbacks);
+        }
 
         // Find all relevant views that we will need to read user input from
         mNameEditText = (EditText) findViewById(R.id.edit_pet_name);
@@ -182,10 +240,11 @@ public class EditorActivity extends AppCompatActivity implements
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
 
-        // If this is a new pet, hide the "Delete" menu item.
+        // If this is a new pet, hide the "Delete" and "Mark as Adopted" menu items.
         if (mPetUri == null) {
             MenuItem menuItem = menu.findItem(R.id.action_delete);
             menuItem.setVisible(false);
+            menu.findItem(R.id.action_mark_adopted).setVisible(false);
         }
         return true;
     }
@@ -196,7 +255,13 @@ public class EditorActivity extends AppCompatActivity implements
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save new Pet to db and exit activity
+                // Before adding a new Pet, warn if it looks like one that is already in the
+                // shelter
+                if (mPetUri == null) {
+                    saveUnlessLikelyDuplicate();
+                    return true;
+                }
+                // Save the Pet to db and exit activity
                 savePet();
                 finish();
                 return true;
@@ -205,6 +270,10 @@ public class EditorActivity extends AppCompatActivity implements
                 // Confirmation dialog for Delete Pet
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Mark as Adopted" menu option
+            case R.id.action_mark_adopted:
+                markPetAdopted();
+                return true;
             // Respond to a click on the "Up" arrow button in the app bar
             case android.R.id.home:
                 if (!mPetHasChanged) {
@@ -254,6 +323,8 @@ public class EditorActivity extends AppCompatActivity implements
     // called when a loader has finished loading data
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        mOpenFlow.finish(OPEN_BUDGET);
+
         // Exit early if the cursor is null or there is less than 1 row in the cursor
         if (data == null || data.getCount() < 1) {
             return;
@@ -264,9 +335,11 @@ public class EditorActivity extends AppCompatActivity implements
 
             String petName = data.getString(data.getColumnIndex(PetEntry.COLUMN_PET_NAME));
             mNameEditText.setText(petName);
+            mLoadedName = petName == null ? "" : petName.trim();
 
             String petBreed = data.getString(data.getColumnIndex(PetEntry.COLUMN_PET_BREED));
             mBreedEditText.setText(petBreed);
+            mLoadedBreed = petBreed == null ? "" : petBreed.trim();
 
             int petGender = data.getInt(data.getColumnIndex(PetEntry.COLUMN_PET_GENDER));
             switch (petGender) {
@@ -279,9 +352,11 @@ public class EditorActivity extends AppCompatActivity implements
                 default:
                     mGenderSpinner.setSelection(PetEntry.GENDER_UNKNOWN);
             }
+            mLoadedGender = PetEntry.isValidGender(petGender) ? petGender : PetEntry.GENDER_UNKNOWN;
 
             int petWeight = data.getInt(data.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT));
-            mWeightEditText.setText(Integer.toString(petWeight));
+            mLoadedWeight = Integer.toString(petWeight);
+            mWeightEditText.setText(mLoadedWeight);
         }
     }
 
@@ -296,7 +371,21 @@ public class EditorActivity extends AppCompatActivity implements
         mWeightEditText.setText("");
     }
 
-    // Get user input of Pet from editor and saves Pet into database
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The editor may be left before the pet was loaded
+        if (mOpenFlow != null) {
+            mOpenFlow.cancel();
+        }
+    }
+
+    /*
+    * Gets user input of Pet from editor and saves Pet into database. The write runs on a
+    * background thread so the UI never waits for the provider, e.g. while it is still warming
+    * up, and the editor can be closed right away. Its result is shown with the application
+    * context since the activity may be gone by then.
+    * */
     private void savePet() {
 
         // Read from input fields, use trim to eliminate leading or trailing white space
@@ -304,19 +393,6 @@ public class EditorActivity extends AppCompatActivity implements
         String breedString = mBreedEditText.getText().toString().trim();
         String weightString = mWeightEditText.getText().toString().trim();
 
-        // Create ContentValues object and put user entered values into corresponding column names
-        ContentValues values = new ContentValues();
-        if (!TextUtils.isEmpty(nameString)) {
-            values.put(PetEntry.COLUMN_PET_NAME, nameString);
-        }
-        if (!TextUtils.isEmpty(breedString)) {
-            values.put(PetEntry.COLUMN_PET_BREED, breedString);
-        }
-        if (!TextUtils.isEmpty(weightString)) {
-            values.put(PetEntry.COLUMN_PET_WEIGHT, weightString);
-        }
-        values.put(PetEntry.COLUMN_PET_GENDER, mGender);
-
         // If mPetUri == null, save a new Pet, otherwise
         // this will update an existing Pet
         if (mPetUri == null) {
@@ -327,34 +403,88 @@ public class EditorActivity extends AppCompatActivity implements
                     TextUtils.isEmpty(weightString) &&
                     mGender == PetEntry.GENDER_UNKNOWN) {
                 Toast.makeText(this, R.string.editor_pet_not_saved, Toast.LENGTH_SHORT).show();
-                finish();
-            } else {
-                // Add a new Pet
-                // Insert new row using PetProvider insert() method and get a URI
-                // then use URI to get the row ID.
-                Uri uri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-                if (uri == null) {
-                    // If URI == null, then there was an error with db insertion
-                    Toast.makeText(this, R.string.editor_insert_pet_failed, Toast.LENGTH_SHORT).show();
-                } else {
-                    // Else db insertion successful and we display Toast
-                    Toast.makeText(this, R.string.editor_insert_pet_success, Toast.LENGTH_SHORT).show();
-                }
+                return;
+            }
+
+            // Create ContentValues object and put user entered values into corresponding column names
+            ContentValues values = new ContentValues();
+            if (!TextUtils.isEmpty(nameString)) {
+                values.put(PetEntry.COLUMN_PET_NAME, nameString);
             }
+            if (!TextUtils.isEmpty(breedString)) {
+                values.put(PetEntry.COLUMN_PET_BREED, breedString);
+            }
+            if (!TextUtils.isEmpty(weightString)) {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, weightString);
+            }
+            values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+            writePet(values);
         } else {
-            // Update an existing pet
-            int rowsUpdated = getContentResolver().update(mPetUri, values, null, null);
-            if (rowsUpdated == 0) {
-                // If no Pet was updated, then there was an error
-                Toast.makeText(this, R.string.editor_update_pet_failed, Toast.LENGTH_SHORT).show();
-            } else {
-                // Else Pet update successful
-                Toast.makeText(this, R.string.editor_update_pet_success, Toast.LENGTH_SHORT).show();
+            // Only put the fields that differ from the loaded pet, so unchanged columns aren't
+            // rewritten
+            ContentValues values = new ContentValues();
+            if (!TextUtils.isEmpty(nameString) && !nameString.equals(mLoadedName)) {
+                values.put(PetEntry.COLUMN_PET_NAME, nameString);
+            }
+            if (!breedString.equals(mLoadedBreed)) {
+                // An empty breed clears the breed of the pet
+                values.put(PetEntry.COLUMN_PET_BREED, breedString);
             }
+            if (!TextUtils.isEmpty(weightString) && !weightString.equals(mLoadedWeight)) {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, weightString);
+            }
+            if (mGender != mLoadedGender) {
+                values.put(PetEntry.COLUMN_PET_GENDER, mGender);
+            }
+
+            // If nothing changed, skip the write and the change notification entirely
+            if (values.size() == 0) {
+                Toast.makeText(this, R.string.editor_no_changes, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            writePet(values);
         }
     }
 
+    // Helper method for savePet(). Inserts a new Pet, or updates the existing one, with the
+    // given values.
+    private void writePet(ContentValues values) {
+        final PetOperationLog.Flow flow = PetOperationLog.beginFlow("Save pet");
+        final Context context = getApplicationContext();
+        final Uri petUri = mPetUri;
+        new AsyncTask<ContentValues, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(ContentValues... values) {
+                ContentResolver resolver = context.getContentResolver();
+                flow.enter();
+                try {
+                    if (petUri == null) {
+                        // Insert new row using PetProvider insert() method, null if it failed
+                        return resolver.insert(PetEntry.CONTENT_URI, values[0]) != null;
+                    }
+                    // Update an existing pet, no rows updated if it failed
+                    return resolver.update(petUri, values[0], null, null) > 0;
+                } finally {
+                    flow.exit();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Boolean saved) {
+                flow.finish(SAVE_BUDGET);
+                int message;
+                if (petUri == null) {
+                    message = saved ? R.string.editor_insert_pet_success
+                            : R.string.editor_insert_pet_failed;
+                } else {
+                    message = saved ? R.string.editor_update_pet_success
+                            : R.string.editor_update_pet_failed;
+                }
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+            }
+        }.execute(values);
+    }
+
     /*
      * If editing a Pet, dialog appears to allow user to "Keep Editing" or "Discard" changes
      * if user clicks on either the Up or Back button
@@ -386,6 +516,57 @@ public class EditorActivity extends AppCompatActivity implements
         builder.create().show();
     }
 
+    /*
+     * Saves the new pet and exits, unless an existing pet is likely the same animal as the one
+     * entered, in which case the user is asked first. The provider only compares pets with the
+     * same blocking key, and is asked by a loader so the answer survives a rotation.
+     * */
+    private void saveUnlessLikelyDuplicate() {
+        String nameString = mNameEditText.getText().toString().trim();
+        if (TextUtils.isEmpty(nameString)) {
+            savePet();
+            finish();
+            return;
+        }
+        // Ignore Save while the previous one is still being checked
+        if (getLoaderManager().getLoader(DUPLICATE_CHECK_LOADER) != null) {
+            return;
+        }
+
+        Bundle request = new Bundle();
+        request.putString(PetEntry.COLUMN_PET_NAME, nameString);
+        request.putString(PetEntry.COLUMN_PET_BREED, mBreedEditText.getText().toString().trim());
+        request.putInt(PetEntry.COLUMN_PET_GENDER, mGender);
+        getLoaderManager().initLoader(DUPLICATE_CHECK_LOADER, request, mDuplicateCheckCallbacks);
+    }
+
+    /*
+     * If a new Pet looks like an existing one, dialog appears to allow user to "Save Anyway"
+     * or "Keep Editing"
+     * */
+    private void showDuplicateConfirmationDialog(String duplicateName) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getString(R.string.duplicate_dialog_msg, duplicateName))
+                .setPositiveButton(R.string.save_anyway, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        // User clicked "Save Anyway", so add the Pet and exit activity
+                        savePet();
+                        finish();
+                    }
+                })
+                .setNegativeButton(R.string.keep_editing, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (dialog != null) {
+                            dialog.dismiss();
+                        }
+                    }
+                });
+        // Create and show the AlertDialog
+        builder.create().show();
+    }
+
     /*
      * If user clicks on "Delete" a Pet, dialog appears to allow user to "Delete" or "Cancel"
      * the operation
@@ -416,21 +597,61 @@ public class EditorActivity extends AppCompatActivity implements
     }
 
     /**
-     * Perform the deletion of the pet in the database.
+     * Perform the deletion of the pet in the database, on a background thread, and exit.
      */
     private void deletePet() {
         // Only  delete if this is an existing pet.
         if (mPetUri != null) {
-            int rowDeleted = getContentResolver().delete(mPetUri, null, null);
-
-            if (rowDeleted == 0) {
-                // Show toast if Pet failed to delete
-                Toast.makeText(this, R.string.editor_delete_pet_failed, Toast.LENGTH_SHORT).show();
-            } else {
-                // Else show toast if Pet deleted successfully
-                Toast.makeText(this, R.string.editor_delete_pet_successful, Toast.LENGTH_SHORT).show();
-            }
+            final Context context = getApplicationContext();
+            new AsyncTask<Uri, Void, Integer>() {
+                @Override
+                protected Integer doInBackground(Uri... petUris) {
+                    return context.getContentResolver().delete(petUris[0], null, null);
+                }
+
+                @Override
+                protected void onPostExecute(Integer rowDeleted) {
+                    if (rowDeleted == 0) {
+                        // Show toast if Pet failed to delete
+                        Toast.makeText(context, R.string.editor_delete_pet_failed,
+                                Toast.LENGTH_SHORT).show();
+                    } else {
+                        // Else show toast if Pet deleted successfully
+                        Toast.makeText(context, R.string.editor_delete_pet_successful,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+            }.execute(mPetUri);
         }
         finish();
     }
-}
\ No newline at end of file
+
+    /**
+     * Mark the pet as adopted, on a background thread, and exit. It stays in the catalog until
+     * the provider archives it.
+     */
+    private void markPetAdopted() {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_STATUS, PetEntry.STATUS_ADOPTED);
+
+        final Context context = getApplicationContext();
+        final Uri petUri = mPetUri;
+        new AsyncTask<ContentValues, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(ContentValues... values) {
+                return context.getContentResolver().update(petUri, values[0], null, null);
+            }
+
+            @Override
+            protected void onPostExecute(Integer rowsUpdated) {
+                if (rowsUpdated == 0) {
+                    Toast.makeText(context, R.string.editor_pet_adopted_failed,
+                            Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(context, R.string.editor_pet_adopted, Toast.LENGTH_SHORT).show();
+                }
+            }
+        }.execute(values);
+        finish();
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.pets;
+
+import android.os.Bundle;
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.ListView;
+
+import com.example.android.pets.adapter.KioskSnapshotAdapter;
+import com.example.android.pets.data.KioskSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Read-only catalog for lobby kiosks. Renders the {@link KioskSnapshot} exported by the
+ * provider instead of querying it, so startup only maps one file: no SQLite, no loader.
+ *
+ * The kiosk stays on screen for days, so it maps the snapshot again whenever the app exports
+ * a new one: while shown, a {@link FileObserver} sees the new file renamed into place, and on
+ * resume the file's modification time is checked for exports made while it was hidden.
+ */
+public class KioskActivity extends AppCompatActivity {
+
+    private static final String TAG = KioskActivity.class.getSimpleName();
+
+    private ListView mKioskListView;
+    private File mSnapshotFile;
+    // Modification time of the snapshot shown, 0 if none is
+    private long mSnapshotModified;
+    // Watches the files directory for new snapshots while the kiosk is resumed
+    private FileObserver mSnapshotObserver;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_kiosk);
+
+        final long startMillis = SystemClock.elapsedRealtime();
+
+        mKioskListView = (ListView) findViewById(R.id.list_view_kiosk);
+        mKioskListView.setEmptyView(findViewById(R.id.kiosk_empty_view));
+
+        // Mapping the snapshot is a couple of system calls, so it is done on the main thread
+        // and the first frame already has the list
+        mSnapshotFile = new File(getFilesDir(), KioskSnapshot.FILE_NAME);
+        openSnapshotIfChanged();
+
+        // The writer renames each new snapshot over the old one
+        mSnapshotObserver = new FileObserver(getFilesDir().getPath(), FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (KioskSnapshot.FILE_NAME.equals(path)) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            openSnapshotIfChanged();
+                        }
+                    });
+                }
+            }
+        };
+
+        if (BuildConfig.DEBUG) {
+            final View content = findViewById(android.R.id.content);
+            content.getViewTreeObserver().addOnPreDrawListener(
+                    new ViewTreeObserver.OnPreDrawListener() {
+                        @Override
+                        public boolean onPreDraw() {
+                            content.getViewTreeObserver().removeOnPreDrawListener(this);
+                            Log.d(TAG, "Kiosk first frame after "
+                                    + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+                            return true;
+                        }
+                    });
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Pick up a snapshot exported while the kiosk was in the background
+        openSnapshotIfChanged();
+        mSnapshotObserver.startWatching();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mSnapshotObserver.stopWatching();
+    }
+
+    // Maps the snapshot file and shows it, unless it is the one already shown
+    private void openSnapshotIfChanged() {
+        // 0 if there is no snapshot
+        long modified = mSnapshotFile.lastModified();
+        if (modified == mSnapshotModified) {
+            return;
+        }
+        try {
+            KioskSnapshot snapshot = KioskSnapshot.open(mSnapshotFile);
+            mKioskListView.setAdapter(new KioskSnapshotAdapter(this, snapshot));
+            mSnapshotModified = modified;
+        } catch (IOException e) {
+            // No snapshot has been exported yet, or it is from another app version. The list
+            // keeps what it shows, or the empty view, until the app exports a new one.
+            Log.w(TAG, "Kiosk snapshot not available", e);
+        }
+    }
+}
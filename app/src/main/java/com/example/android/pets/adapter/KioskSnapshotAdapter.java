@@ -0,0 +1,104 @@
+package com.example.android.pets.adapter;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.example.android.pets.R;
+import com.example.android.pets.data.KioskSnapshot;
+
+/**
+ * {@link KioskSnapshotAdapter} is an adapter for a list view that renders the pets of a
+ * memory-mapped {@link KioskSnapshot} in name order. Names and breeds are copied into char
+ * buffers owned by each recycled row, so binding a row doesn't allocate.
+ */
+public class KioskSnapshotAdapter extends BaseAdapter {
+
+    private final LayoutInflater mInflater;
+    private final KioskSnapshot mSnapshot;
+    private final String mUnknownBreed;
+
+    /**
+     * Constructs a new {@link KioskSnapshotAdapter}.
+     *
+     * @param context  The context
+     * @param snapshot The snapshot to render
+     */
+    public KioskSnapshotAdapter(Context context, KioskSnapshot snapshot) {
+        mInflater = LayoutInflater.from(context);
+        mSnapshot = snapshot;
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+    }
+
+    @Override
+    public int getCount() {
+        return mSnapshot.getCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mSnapshot.getRecordByName(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mSnapshot.getId(mSnapshot.getRecordByName(position));
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.list_item, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        int record = mSnapshot.getRecordByName(position);
+
+        // Set data to view
+        holder.mNameBuffer = ensureCapacity(holder.mNameBuffer, mSnapshot.getNameLength(record));
+        int nameLength = mSnapshot.getName(record, holder.mNameBuffer);
+        holder.mPetName.setText(holder.mNameBuffer, 0, nameLength);
+
+        holder.mBreedBuffer = ensureCapacity(holder.mBreedBuffer,
+                mSnapshot.getBreedLength(record));
+        int breedLength = mSnapshot.getBreed(record, holder.mBreedBuffer);
+        if (breedLength == 0) {
+            // If Pet breed is empty, set String to "Unknown"
+            holder.mPetSummary.setText(mUnknownBreed);
+        } else {
+            holder.mPetSummary.setText(holder.mBreedBuffer, 0, breedLength);
+        }
+        return convertView;
+    }
+
+    // Returns the given buffer, or a larger one if it can't hold length chars. Buffers only
+    // grow, so a scrolled list soon stops allocating.
+    private static char[] ensureCapacity(char[] buffer, int length) {
+        return buffer.length >= length ? buffer : new char[Math.max(length, buffer.length * 2)];
+    }
+
+    // Views and text buffers of a recycled list item
+    private static class ViewHolder {
+        final TextView mPetName;
+        final TextView mPetSummary;
+        char[] mNameBuffer = new char[32];
+        char[] mBreedBuffer = new char[32];
+
+        ViewHolder(View view) {
+            mPetName = (TextView) view.findViewById(R.id.petName);
+            mPetSummary = (TextView) view.findViewById(R.id.petSummary);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.example.android.pets.R;
@@ -20,7 +21,9 @@ import com.example.android.pets.data.PetContract.PetEntry;
  * how to create list items for each row of pet data in the {@link Cursor}.
  */
 
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends CursorAdapter implements SectionIndexer {
+
+    private PetSectionIndex mSectionIndex = PetSectionIndex.EMPTY;
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
@@ -32,6 +35,29 @@ public class PetCursorAdapter extends CursorAdapter {
         super(context, c, 0);
     }
 
+    /**
+     * Replaces the section index used for fast scrolling. Passing null removes the sections.
+     */
+    public void swapSectionIndex(PetSectionIndex sectionIndex) {
+        mSectionIndex = sectionIndex == null ? PetSectionIndex.EMPTY : sectionIndex;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSectionIndex.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        return mSectionIndex.getPositionForSection(sectionIndex, getCount());
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSectionIndex.getSectionForPosition(position, getCount());
+    }
+
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
@@ -61,6 +87,7 @@ public class PetCursorAdapter extends CursorAdapter {
         // Find the views to inflate
         TextView textPetName = (TextView) view.findViewById(R.id.petName);
         TextView textPetSummary = (TextView) view.findViewById(R.id.petSummary);
+        TextView textPetMedicalDue = (TextView) view.findViewById(R.id.petMedicalDue);
 
         // Get data from cursor
         String name = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME));
@@ -75,5 +102,11 @@ public class PetCursorAdapter extends CursorAdapter {
             // Else if breed is present, set the Pet breed
             textPetSummary.setText(breed);
         }
+
+        // Show the due badge if the cursor comes from the summary URI and a record is due
+        int nextDueColumn = cursor.getColumnIndex(PetEntry.COLUMN_NEXT_MEDICAL_DUE_DATE);
+        boolean medicalDue = nextDueColumn != -1 && !cursor.isNull(nextDueColumn)
+                && cursor.getLong(nextDueColumn) <= System.currentTimeMillis();
+        textPetMedicalDue.setVisibility(medicalDue ? View.VISIBLE : View.GONE);
     }
 }
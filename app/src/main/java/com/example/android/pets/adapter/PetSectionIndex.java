@@ -0,0 +1,99 @@
+package com.example.android.pets.adapter;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.SectionEntry;
+
+import java.util.Arrays;
+
+/**
+ * Positions of the alphabet sections of the catalog, built from the section counts the
+ * provider keeps at {@link com.example.android.pets.data.PetContract.PetEntry#SECTIONS_URI}.
+ * The list must be sorted by
+ * {@link com.example.android.pets.data.PetContract.PetEntry#SECTION_SORT_ORDER}.
+ *
+ * Both catalog adapters implement {@link android.widget.SectionIndexer} on top of this, so fast
+ * scrolling to a letter is a lookup in a small array instead of a walk over the list.
+ */
+public final class PetSectionIndex {
+
+    /** Index without sections, used until the section counts are loaded */
+    public static final PetSectionIndex EMPTY = new PetSectionIndex(new String[0], new int[0]);
+
+    private final String[] mSections;
+    // Position of the first pet of each section, not counting the pets without a section yet.
+    // The provider leaves out empty sections, so the positions are strictly increasing.
+    private final int[] mStarts;
+    // Number of pets in all sections
+    private final int mTotal;
+
+    private PetSectionIndex(String[] sections, int[] counts) {
+        mSections = sections;
+        mStarts = new int[counts.length];
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            mStarts[i] = total;
+            total += counts[i];
+        }
+        mTotal = total;
+    }
+
+    /**
+     * Builds the index from a cursor over the sections URI, in section order. The cursor is
+     * left open.
+     */
+    public static PetSectionIndex fromCursor(Cursor cursor) {
+        if (cursor == null) {
+            return EMPTY;
+        }
+        int sectionColumn = cursor.getColumnIndexOrThrow(SectionEntry.COLUMN_SECTION_NAME);
+        int countColumn = cursor.getColumnIndexOrThrow(SectionEntry.COLUMN_SECTION_PET_COUNT);
+        String[] sections = new String[cursor.getCount()];
+        int[] counts = new int[sections.length];
+        cursor.moveToPosition(-1);
+        for (int i = 0; i < sections.length && cursor.moveToNext(); i++) {
+            sections[i] = cursor.getString(sectionColumn);
+            counts[i] = cursor.getInt(countColumn);
+        }
+        return new PetSectionIndex(sections, counts);
+    }
+
+    /** Returns the section names, for {@link android.widget.SectionIndexer#getSections()} */
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    /**
+     * Returns the position of the first pet of the given section in a list of
+     * {@code itemCount} pets.
+     */
+    public int getPositionForSection(int section, int itemCount) {
+        if (mStarts.length == 0) {
+            return 0;
+        }
+        section = Math.max(0, Math.min(section, mStarts.length - 1));
+        return Math.min(getLeadingCount(itemCount) + mStarts[section], Math.max(0, itemCount - 1));
+    }
+
+    /**
+     * Returns the section of the pet at the given position in a list of {@code itemCount} pets.
+     */
+    public int getSectionForPosition(int position, int itemCount) {
+        if (mStarts.length == 0) {
+            return 0;
+        }
+        int sectionPosition = position - getLeadingCount(itemCount);
+        if (sectionPosition <= 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(mStarts, sectionPosition);
+        // A position that isn't the first of a section is in the section that starts before it
+        return index >= 0 ? index : -index - 2;
+    }
+
+    // Pets whose section hasn't been backfilled yet have a null section, which sorts before
+    // every other section, so they come first in the list
+    private int getLeadingCount(int itemCount) {
+        return Math.max(0, itemCount - mTotal);
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.android.pets.adapter;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetSnapshot;
+
+/**
+ * {@link PetSnapshotAdapter} is an adapter for a list or grid view that uses a
+ * {@link PetSnapshot} of pet data as its data source. It renders the same list items as
+ * {@link PetCursorAdapter}, without holding a cursor open.
+ */
+public class PetSnapshotAdapter extends BaseAdapter implements SectionIndexer {
+
+    private final LayoutInflater mInflater;
+    private PetSnapshot mSnapshot = PetSnapshot.EMPTY;
+    private PetSectionIndex mSectionIndex = PetSectionIndex.EMPTY;
+
+    /**
+     * Constructs a new {@link PetSnapshotAdapter} with no rows.
+     *
+     * @param context The context
+     */
+    public PetSnapshotAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Replaces the snapshot the adapter renders from. Passing null clears the list.
+     */
+    public void swapSnapshot(PetSnapshot snapshot) {
+        mSnapshot = snapshot == null ? PetSnapshot.EMPTY : snapshot;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Replaces the section index used for fast scrolling. Passing null removes the sections.
+     */
+    public void swapSectionIndex(PetSectionIndex sectionIndex) {
+        mSectionIndex = sectionIndex == null ? PetSectionIndex.EMPTY : sectionIndex;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSectionIndex.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        return mSectionIndex.getPositionForSection(sectionIndex, getCount());
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mSectionIndex.getSectionForPosition(position, getCount());
+    }
+
+    @Override
+    public int getCount() {
+        return mSnapshot.getCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mSnapshot.getName(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mSnapshot.getId(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        View view = convertView;
+        if (view == null) {
+            view = mInflater.inflate(R.layout.list_item, parent, false);
+        }
+
+        // Find the views to inflate
+        TextView textPetName = (TextView) view.findViewById(R.id.petName);
+        TextView textPetSummary = (TextView) view.findViewById(R.id.petSummary);
+        TextView textPetMedicalDue = (TextView) view.findViewById(R.id.petMedicalDue);
+
+        // Set data to view
+        textPetName.setText(mSnapshot.getName(position));
+        String breed = mSnapshot.getBreed(position);
+        if (TextUtils.isEmpty(breed)) {
+            // If Pet breed is empty, set String to "Unknown"
+            textPetSummary.setText(R.string.unknown_breed);
+        } else {
+            // Else if breed is present, set the Pet breed
+            textPetSummary.setText(breed);
+        }
+
+        // Show the due badge if a record is due, as PetCursorAdapter does. The view may be a
+        // recycled one that showed it.
+        boolean medicalDue = mSnapshot.isMedicalDue(position, System.currentTimeMillis());
+        textPetMedicalDue.setVisibility(medicalDue ? View.VISIBLE : View.GONE);
+        return view;
+    }
+}
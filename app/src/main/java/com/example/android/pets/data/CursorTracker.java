@@ -0,0 +1,245 @@
+package com.example.android.pets.data;
+
+import android.content.res.Resources;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Debug build tracking of the cursors {@link PetProvider} hands out.
+ *
+ * Every cursor is wrapped so the tracker knows where it was allocated, when, and whether it
+ * holds a native CursorWindow, until it is closed. A cursor that is garbage collected without
+ * being closed is reported as a leak together with the stack that created it, since its window
+ * pinned native memory until then. That includes a cursor closed by a finalizer, such as the
+ * one of the wrapper ContentResolver puts around provider cursors: the wrapper keeps a weak
+ * reference to itself, which the garbage collector clears before any finalizer runs, so a
+ * close that finds it cleared comes from finalization. {@link PetOperationLog.Flow} checks the
+ * cursors each user action leaves open against its {@link QueryBudget}. Release builds return
+ * cursors unwrapped.
+ */
+public final class CursorTracker {
+
+    private static final String LOG_TAG = CursorTracker.class.getSimpleName();
+
+    // Size of a CursorWindow when the platform doesn't say, 2 MB on every release so far
+    private static final int DEFAULT_WINDOW_SIZE_BYTES = 2 * 1024 * 1024;
+
+    // Records of the open cursors. The records don't reference the wrappers handed out, so an
+    // unclosed wrapper can still be collected and reported.
+    private static final Set<Record> sOpenCursors = new HashSet<Record>();
+    // Number of cursors tracked so far, used as the sequence number of the next one
+    private static long sTrackedCount;
+    // Number of cursors collected without being closed, in total and by the flow whose thread
+    // opened them
+    private static int sLeakCount;
+    private static final Map<PetOperationLog.Flow, Integer> sFlowLeakCounts =
+            new WeakHashMap<PetOperationLog.Flow, Integer>();
+
+    private static int sWindowSizeBytes;
+
+    private CursorTracker() {
+    }
+
+    /**
+     * Returns the given cursor wrapped for tracking in debug builds, or the cursor itself.
+     */
+    static Cursor track(Cursor cursor, Uri uri) {
+        if (!PetOperationLog.ENABLED || cursor == null) {
+            return cursor;
+        }
+        Record record;
+        synchronized (sOpenCursors) {
+            record = new Record(cursor, uri, sTrackedCount++);
+            sOpenCursors.add(record);
+        }
+        return new TrackedCursor(cursor, record);
+    }
+
+    /** Returns the number of tracked cursors that are still open */
+    public static int getOpenCursorCount() {
+        synchronized (sOpenCursors) {
+            return sOpenCursors.size();
+        }
+    }
+
+    /**
+     * Returns the native memory held by the windows of the open cursors. Every window that has
+     * been filled counts with the platform's window size, which is what it reserves.
+     */
+    public static long getOpenWindowBytes() {
+        long bytes = 0;
+        synchronized (sOpenCursors) {
+            for (Record record : sOpenCursors) {
+                bytes += record.getWindowBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns the number of cursors that were garbage collected without being closed */
+    public static int getLeakCount() {
+        synchronized (sOpenCursors) {
+            return sLeakCount;
+        }
+    }
+
+    /**
+     * Logs every open cursor with its URI, how long it has been open, its window memory and
+     * the stack that created it.
+     */
+    public static void logOpenCursors() {
+        List<String> descriptions = describeOpenCursorsSince(0);
+        Log.d(LOG_TAG, descriptions.size() + " open cursors holding " + getOpenWindowBytes()
+                + " window bytes");
+        for (String description : descriptions) {
+            Log.d(LOG_TAG, description);
+        }
+    }
+
+    // Returns the sequence number the next tracked cursor will get
+    static long getSequence() {
+        synchronized (sOpenCursors) {
+            return sTrackedCount;
+        }
+    }
+
+    // Returns the number of cursors opened on threads that entered the given flow that were
+    // garbage collected without being closed
+    static int getLeakCount(PetOperationLog.Flow flow) {
+        synchronized (sOpenCursors) {
+            Integer count = sFlowLeakCounts.get(flow);
+            return count == null ? 0 : count;
+        }
+    }
+
+    // Returns a description of every open cursor opened on a thread that entered the given flow
+    static List<String> describeOpenCursorsOf(PetOperationLog.Flow flow) {
+        List<String> descriptions = new ArrayList<String>();
+        synchronized (sOpenCursors) {
+            for (Record record : sOpenCursors) {
+                if (record.mFlow == flow) {
+                    descriptions.add(record.describe());
+                }
+            }
+        }
+        return descriptions;
+    }
+
+    // Returns a description of every open cursor with at least the given sequence number
+    static List<String> describeOpenCursorsSince(long sequence) {
+        List<String> descriptions = new ArrayList<String>();
+        synchronized (sOpenCursors) {
+            for (Record record : sOpenCursors) {
+                if (record.mSequence >= sequence) {
+                    descriptions.add(record.describe());
+                }
+            }
+        }
+        return descriptions;
+    }
+
+    private static int getWindowSizeBytes() {
+        if (sWindowSizeBytes == 0) {
+            int id = Resources.getSystem().getIdentifier(
+                    "config_cursorWindowSize", "integer", "android");
+            sWindowSizeBytes = id == 0
+                    ? DEFAULT_WINDOW_SIZE_BYTES : Resources.getSystem().getInteger(id) * 1024;
+        }
+        return sWindowSizeBytes;
+    }
+
+    // Removes a cursor that was closed, or reports one that was collected while still open
+    private static void untrack(Record record, boolean leaked) {
+        synchronized (sOpenCursors) {
+            if (!sOpenCursors.remove(record)) {
+                return;
+            }
+            if (leaked) {
+                sLeakCount++;
+                if (record.mFlow != null) {
+                    Integer count = sFlowLeakCounts.get(record.mFlow);
+                    sFlowLeakCounts.put(record.mFlow, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        if (leaked) {
+            Log.e(LOG_TAG, "Leaked " + record.describe());
+        }
+    }
+
+    // Where and when a tracked cursor was created, and the cursor it wraps
+    private static final class Record {
+        final Cursor mCursor;
+        final Uri mUri;
+        final long mSequence;
+        // Flow the creating thread had entered, or null
+        final PetOperationLog.Flow mFlow = PetOperationLog.getCurrentFlow();
+        final long mOpenedAtMillis = SystemClock.elapsedRealtime();
+        final Throwable mAllocationSite = new Throwable("Cursor allocated here");
+
+        Record(Cursor cursor, Uri uri, long sequence) {
+            mCursor = cursor;
+            mUri = uri;
+            mSequence = sequence;
+        }
+
+        // Window memory held by the cursor, 0 for in-memory results such as cache hits
+        long getWindowBytes() {
+            if (mCursor instanceof AbstractWindowedCursor
+                    && ((AbstractWindowedCursor) mCursor).hasWindow()) {
+                return getWindowSizeBytes();
+            }
+            return 0;
+        }
+
+        String describe() {
+            return "cursor for " + mUri + ", open for "
+                    + (SystemClock.elapsedRealtime() - mOpenedAtMillis) + " ms, "
+                    + getWindowBytes() + " window bytes\n"
+                    + Log.getStackTraceString(mAllocationSite);
+        }
+    }
+
+    // Cursor wrapper that reports its close, or its collection without a close, to the tracker
+    private static final class TrackedCursor extends CursorWrapper {
+        private final Record mRecord;
+        // Cleared once nothing but finalizers can reach the wrapper
+        private final WeakReference<TrackedCursor> mReachable;
+
+        TrackedCursor(Cursor cursor, Record record) {
+            super(cursor);
+            mRecord = record;
+            mReachable = new WeakReference<TrackedCursor>(this);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            untrack(mRecord, mReachable.get() == null);
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (!isClosed()) {
+                    untrack(mRecord, true);
+                    super.close();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory-mapped copy of the pet catalog for the lobby kiosk.
+ *
+ * The file is written by {@link KioskSnapshotWriter} from shelter.db and read without opening
+ * SQLite. Rows are only read through absolute gets on the mapped buffer, and names and breeds
+ * are copied into caller-owned char arrays, so rendering a row allocates nothing.
+ * {@link PetProvider} exports it again shortly after writes that changed pets, see
+ * {@link PetContract#METHOD_EXPORT_KIOSK_SNAPSHOT} for when it is guaranteed to be current.
+ *
+ * File layout, big-endian:
+ * <pre>
+ *   header   magic, version, record count, index offset, heap offset, heap length (6 ints)
+ *   records  one fixed-width record per pet, in _ID order (RECORD_SIZE bytes each):
+ *            _ID (long), name offset and length, breed offset and length (-1 if none),
+ *            gender and weight (ints). Offsets and lengths count chars in the heap.
+ *   index    record numbers sorted by name, ignoring case (one int each)
+ *   heap     UTF-16 chars of every name and breed, each distinct breed stored once
+ * </pre>
+ */
+public final class KioskSnapshot {
+
+    /** Name of the snapshot file in the app's files directory */
+    public static final String FILE_NAME = "kiosk_catalog.snapshot";
+
+    // "PETK", identifies the file
+    static final int MAGIC = 0x5045544b;
+    // Bumped on every change to the layout. Older files are rejected, not migrated.
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 6 * 4;
+    static final int RECORD_SIZE = 8 + 6 * 4;
+
+    // Byte offsets of the fields within a record
+    private static final int ID_OFFSET = 0;
+    private static final int NAME_OFFSET = 8;
+    private static final int NAME_LENGTH = 12;
+    private static final int BREED_OFFSET = 16;
+    private static final int BREED_LENGTH = 20;
+    private static final int GENDER = 24;
+    private static final int WEIGHT = 28;
+
+    /** Breed offset of a record without a breed */
+    static final int NO_BREED = -1;
+
+    private final ByteBuffer mRecords;
+    private final ByteBuffer mIndex;
+    private final CharBuffer mHeap;
+    private final int mCount;
+
+    private KioskSnapshot(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a kiosk snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported kiosk snapshot version " + buffer.getInt(4));
+        }
+        mCount = buffer.getInt(8);
+        int indexOffset = buffer.getInt(12);
+        int heapOffset = buffer.getInt(16);
+        int heapLength = buffer.getInt(20);
+        if (mCount < 0 || indexOffset != HEADER_SIZE + mCount * RECORD_SIZE
+                || heapOffset != indexOffset + mCount * 4
+                || heapLength < 0 || heapOffset + heapLength * 2 != buffer.capacity()) {
+            throw new IOException("Truncated or corrupt kiosk snapshot");
+        }
+
+        mRecords = slice(buffer, HEADER_SIZE, indexOffset);
+        mIndex = slice(buffer, indexOffset, heapOffset);
+        mHeap = slice(buffer, heapOffset, buffer.capacity()).asCharBuffer();
+    }
+
+    /**
+     * Maps the snapshot in the app's files directory.
+     *
+     * @throws IOException if there is no snapshot, or it can't be read by this version
+     */
+    public static KioskSnapshot open(Context context) throws IOException {
+        return open(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Maps the given snapshot file. The mapping stays valid after the file is replaced.
+     *
+     * @throws IOException if the file doesn't exist or can't be read by this version
+     */
+    public static KioskSnapshot open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return new KioskSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // The mapping outlives the channel
+            randomAccessFile.close();
+        }
+    }
+
+    // Returns a view of bytes [start, end) of the given buffer, with its own position
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.limit(end);
+        return view.slice();
+    }
+
+    /** Returns the number of pets in the snapshot */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the record number of the pet at the given position in name order. Records are
+     * read with the getters below.
+     */
+    public int getRecordByName(int position) {
+        return mIndex.getInt(position * 4);
+    }
+
+    public long getId(int record) {
+        return mRecords.getLong(record * RECORD_SIZE + ID_OFFSET);
+    }
+
+    public int getGender(int record) {
+        return mRecords.getInt(record * RECORD_SIZE + GENDER);
+    }
+
+    public int getWeight(int record) {
+        return mRecords.getInt(record * RECORD_SIZE + WEIGHT);
+    }
+
+    /** Returns the number of chars in the name of the given record */
+    public int getNameLength(int record) {
+        return mRecords.getInt(record * RECORD_SIZE + NAME_LENGTH);
+    }
+
+    /**
+     * Copies the name of the given record to the start of {@code dest}, which must hold at
+     * least {@link #getNameLength} chars. Returns the number of chars copied.
+     */
+    public int getName(int record, char[] dest) {
+        int base = record * RECORD_SIZE;
+        return copyChars(mRecords.getInt(base + NAME_OFFSET), mRecords.getInt(base + NAME_LENGTH),
+                dest);
+    }
+
+    /** Returns the number of chars in the breed of the given record, or 0 if it has none */
+    public int getBreedLength(int record) {
+        return Math.max(0, mRecords.getInt(record * RECORD_SIZE + BREED_LENGTH));
+    }
+
+    /**
+     * Copies the breed of the given record to the start of {@code dest}, which must hold at
+     * least {@link #getBreedLength} chars. Returns the number of chars copied, 0 if the pet
+     * has no breed.
+     */
+    public int getBreed(int record, char[] dest) {
+        int base = record * RECORD_SIZE;
+        int offset = mRecords.getInt(base + BREED_OFFSET);
+        if (offset == NO_BREED) {
+            return 0;
+        }
+        return copyChars(offset, mRecords.getInt(base + BREED_LENGTH), dest);
+    }
+
+    // Copies length chars from the heap at the given offset to the start of dest
+    private int copyChars(int offset, int length, char[] dest) {
+        for (int i = 0; i < length; i++) {
+            dest[i] = mHeap.get(offset + i);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Exports the pet catalog from shelter.db to a {@link KioskSnapshot} file. The file is written
+ * next to the target and renamed over it, so a kiosk never maps a half written snapshot.
+ */
+final class KioskSnapshotWriter {
+
+    private static final String LOG_TAG = KioskSnapshotWriter.class.getSimpleName();
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    private KioskSnapshotWriter() {
+    }
+
+    /**
+     * Writes every pet of the pet details view to the given file.
+     *
+     * @return the number of pets written
+     */
+    static synchronized int export(SQLiteDatabase db, File file) throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+
+        long[] ids;
+        final String[] names;
+        String[] breeds;
+        int[] genders;
+        int[] weights;
+        Cursor cursor = db.query(PetEntry.VIEW_NAME, PROJECTION, null, null, null, null,
+                PetEntry._ID);
+        try {
+            int count = cursor.getCount();
+            ids = new long[count];
+            names = new String[count];
+            breeds = new String[count];
+            genders = new int[count];
+            weights = new int[count];
+            for (int row = 0; row < count && cursor.moveToNext(); row++) {
+                ids[row] = cursor.getLong(0);
+                names[row] = cursor.getString(1);
+                breeds[row] = cursor.isNull(2) ? null : cursor.getString(2);
+                genders[row] = cursor.getInt(3);
+                weights[row] = cursor.getInt(4);
+            }
+        } finally {
+            cursor.close();
+        }
+        int count = ids.length;
+
+        // Record numbers sorted by name, the order the kiosk lists pets in
+        Integer[] byName = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            byName[i] = i;
+        }
+        Arrays.sort(byName, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]);
+            }
+        });
+
+        // Lay out the heap: every name, and every distinct breed once
+        int[] nameOffsets = new int[count];
+        int[] breedOffsets = new int[count];
+        Map<String, Integer> breedHeapOffsets = new HashMap<String, Integer>();
+        StringBuilder heap = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            nameOffsets[i] = heap.length();
+            heap.append(names[i]);
+            if (breeds[i] == null) {
+                breedOffsets[i] = KioskSnapshot.NO_BREED;
+            } else {
+                Integer offset = breedHeapOffsets.get(breeds[i]);
+                if (offset == null) {
+                    offset = heap.length();
+                    heap.append(breeds[i]);
+                    breedHeapOffsets.put(breeds[i], offset);
+                }
+                breedOffsets[i] = offset;
+            }
+        }
+
+        int indexOffset = KioskSnapshot.HEADER_SIZE + count * KioskSnapshot.RECORD_SIZE;
+        int heapOffset = indexOffset + count * 4;
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(KioskSnapshot.MAGIC);
+            out.writeInt(KioskSnapshot.VERSION);
+            out.writeInt(count);
+            out.writeInt(indexOffset);
+            out.writeInt(heapOffset);
+            out.writeInt(heap.length());
+            for (int i = 0; i < count; i++) {
+                out.writeLong(ids[i]);
+                out.writeInt(nameOffsets[i]);
+                out.writeInt(names[i].length());
+                out.writeInt(breedOffsets[i]);
+                out.writeInt(breeds[i] == null ? 0 : breeds[i].length());
+                out.writeInt(genders[i]);
+                out.writeInt(weights[i]);
+            }
+            for (Integer record : byName) {
+                out.writeInt(record);
+            }
+            out.writeChars(heap.toString());
+
+            // Make sure the data is on disk before the rename makes it visible
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+
+        Log.d(LOG_TAG, "Exported " + count + " pets to " + file.getName() + " in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        return count;
+    }
+}
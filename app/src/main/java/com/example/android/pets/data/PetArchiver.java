@@ -0,0 +1,87 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.MedicalEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Moves adopted and transferred pets, together with their medical records, from the pets
+ * table to the archive tables once their status is older than
+ * {@link PetEntry#ARCHIVE_DELAY_MILLIS}. Keeps the pets table, and every catalog query and
+ * index over it, proportional to the animals currently in the shelter.
+ *
+ * Run through {@link PetBackfillRunner} like a backfill, so every batch is its own short
+ * transaction. It isn't scheduled in the pending backfills table: the provider runs it on
+ * every start, and a batch picks its rows from what is still due, so it resumes by itself.
+ */
+final class PetArchiver extends PetBackfill {
+
+    private static final String PET_COLUMNS = TextUtils.join(", ", PetDbHelper.PET_TABLE_COLUMNS);
+    private static final String MEDICAL_COLUMNS =
+            TextUtils.join(", ", PetDbHelper.MEDICAL_TABLE_COLUMNS);
+
+    // Pets whose status changed at or before this time are archived
+    private final long mCutoffMillis;
+
+    /**
+     * @param nowMillis Current time, pets that stopped being available before
+     *                  {@code nowMillis - ARCHIVE_DELAY_MILLIS} are archived
+     */
+    PetArchiver(long nowMillis) {
+        super("archive_pets");
+        mCutoffMillis = nowMillis - PetEntry.ARCHIVE_DELAY_MILLIS;
+    }
+
+    // Archived pets leave the catalog
+    @Override
+    boolean changesVisibleRows() {
+        return true;
+    }
+
+    @Override
+    int runBatch(SQLiteDatabase db, int batchSize) {
+        // Pick the next batch of due pets from pets_status_index
+        String[] ids = findDuePetIds(db, batchSize);
+        if (ids.length == 0) {
+            return 0;
+        }
+        String petSelection = PetEntry._ID + " IN (" +
+                PetProvider.makePlaceholders(ids.length) + ")";
+        String medicalSelection = MedicalEntry.COLUMN_MEDICAL_PET_ID + " IN (" +
+                PetProvider.makePlaceholders(ids.length) + ")";
+
+        // Copy the pets and their records, then delete them. Deleting the records first keeps
+        // the pet delete from having to cascade.
+        db.execSQL("INSERT INTO " + PetEntry.ARCHIVE_TABLE_NAME + " (" + PET_COLUMNS + ")" +
+                " SELECT " + PET_COLUMNS + " FROM " + PetEntry.TABLE_NAME +
+                " WHERE " + petSelection, ids);
+        db.execSQL("INSERT INTO " + MedicalEntry.ARCHIVE_TABLE_NAME + " (" + MEDICAL_COLUMNS + ")" +
+                " SELECT " + MEDICAL_COLUMNS + " FROM " + MedicalEntry.TABLE_NAME +
+                " WHERE " + medicalSelection, ids);
+        db.delete(MedicalEntry.TABLE_NAME, medicalSelection, ids);
+        return db.delete(PetEntry.TABLE_NAME, petSelection, ids);
+    }
+
+    // Returns the IDs of up to batchSize pets that are due for archiving
+    private String[] findDuePetIds(SQLiteDatabase db, int batchSize) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[] { PetEntry._ID },
+                PetEntry.COLUMN_PET_STATUS + " > ? AND " + PetEntry.COLUMN_PET_STATUS_DATE +
+                        " <= ?",
+                new String[] { String.valueOf(PetEntry.STATUS_AVAILABLE),
+                        String.valueOf(mCutoffMillis) },
+                null, null, null,
+                String.valueOf(Math.min(batchSize, PetProvider.MAX_IN_ARGUMENTS)));
+        try {
+            String[] ids = new String[cursor.getCount()];
+            for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getString(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
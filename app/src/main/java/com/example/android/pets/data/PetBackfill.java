@@ -0,0 +1,50 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Data backfill scheduled by a {@link PetMigration}, such as filling in a new derived column.
+ *
+ * A backfill is run by {@link PetBackfillRunner} one batch at a time, each batch in its own
+ * short transaction, so the provider keeps serving reads and writes in between. A batch must
+ * pick its rows from what is still left to do (for example "WHERE column IS NULL LIMIT n"),
+ * which makes a backfill resume where it stopped if the process dies.
+ */
+abstract class PetBackfill {
+
+    private final String mName;
+
+    /**
+     * @param name Unique name under which the backfill is scheduled in the database
+     */
+    PetBackfill(String name) {
+        mName = name;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Called before the first batch of every run, e.g. to forget where the batches of an
+     * earlier run got to. Runs of the same backfill never overlap.
+     */
+    void onStart(SQLiteDatabase db) {
+    }
+
+    /**
+     * Returns whether readers see the rows this backfill changes, so observers have to be told
+     * while it runs. Backfills that only fill in data the views don't return, or build an
+     * index, leave every query result as it was and notify no one.
+     */
+    boolean changesVisibleRows() {
+        return false;
+    }
+
+    /**
+     * Processes up to {@code batchSize} rows. Called inside a transaction.
+     *
+     * @return the number of rows processed, or 0 once there is nothing left to do
+     */
+    abstract int runBatch(SQLiteDatabase db, int batchSize);
+}
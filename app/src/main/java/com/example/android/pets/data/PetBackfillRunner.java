@@ -0,0 +1,161 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the backfills that migrations scheduled in the pending backfills table, in small
+ * transactional batches. Called on a background thread once the database is open.
+ */
+final class PetBackfillRunner {
+
+    private static final String LOG_TAG = PetBackfillRunner.class.getSimpleName();
+
+    // Table of backfills that still have to run, one row per backfill name
+    static final String TABLE_PENDING_BACKFILLS = "pending_backfills";
+    static final String COLUMN_BACKFILL_NAME = "name";
+
+    // SQL statement to create the pending backfills table
+    static final String SQL_CREATE_PENDING_BACKFILLS_TABLE =
+            "CREATE TABLE " + TABLE_PENDING_BACKFILLS + " (" +
+                    COLUMN_BACKFILL_NAME + " TEXT PRIMARY KEY);";
+
+    // Rows per batch. Small enough that a batch holds the write lock for a few milliseconds.
+    private static final int BATCH_SIZE = 500;
+
+    // Pause between batches so provider writes waiting for the lock get in
+    private static final long PAUSE_BETWEEN_BATCHES_MILLIS = 10;
+
+    // Least time between two notifications of the same run. Each one makes every loader query
+    // again, so a run over millions of rows can't notify after each batch.
+    private static final long NOTIFY_INTERVAL_MILLIS = 2000;
+
+    private PetBackfillRunner() {
+    }
+
+    /**
+     * Schedules the given backfill. Called by {@link PetMigrations} inside the upgrade
+     * transaction, once every step has run, so the backfill is only scheduled if the schema
+     * change commits.
+     */
+    static void schedule(SQLiteDatabase db, PetBackfill backfill) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_BACKFILL_NAME, backfill.getName());
+        db.insertWithOnConflict(TABLE_PENDING_BACKFILLS, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Runs every pending backfill to completion.
+     *
+     * @param onBatchCommitted Run after batches that changed rows readers see, e.g. to notify
+     *                         observers, see {@link #run}
+     */
+    static void runPending(SQLiteDatabase db, Runnable onBatchCommitted) {
+        for (String name : getPendingNames(db)) {
+            PetBackfill backfill = PetMigrations.findBackfill(name);
+            if (backfill == null) {
+                Log.w(LOG_TAG, "Dropping unknown backfill " + name);
+                db.delete(TABLE_PENDING_BACKFILLS, COLUMN_BACKFILL_NAME + "=?",
+                        new String[] { name });
+                continue;
+            }
+            run(db, backfill, onBatchCommitted);
+        }
+    }
+
+    /**
+     * Runs a single backfill batch by batch until it reports nothing left to do, then removes
+     * it from the pending backfills table if it was scheduled there. A run of a backfill that
+     * is already running, e.g. from a restore, waits for that one to finish.
+     *
+     * For a backfill whose changes readers see, {@code onBatchCommitted} is run after a batch
+     * at most every NOTIFY_INTERVAL_MILLIS, and once more at the end if batches committed since.
+     * It isn't run for other backfills.
+     */
+    static void run(SQLiteDatabase db, PetBackfill backfill, Runnable onBatchCommitted) {
+        synchronized (backfill) {
+            runLocked(db, backfill, onBatchCommitted);
+        }
+    }
+
+    /**
+     * Returns whether the backfill of the given name is scheduled and hasn't finished.
+     */
+    static boolean isPending(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM " + TABLE_PENDING_BACKFILLS +
+                " WHERE " + COLUMN_BACKFILL_NAME + "=?", new String[] { name }) > 0;
+    }
+
+    // Helper method for run(), called with the backfill locked
+    private static void runLocked(SQLiteDatabase db, PetBackfill backfill,
+                                  Runnable onBatchCommitted) {
+        backfill.onStart(db);
+        long startMillis = SystemClock.elapsedRealtime();
+        long longestBatchMillis = 0;
+        int totalRows = 0;
+        boolean notify = backfill.changesVisibleRows();
+        long lastNotifyMillis = startMillis;
+        boolean changedSinceNotify = false;
+
+        while (true) {
+            long batchStartMillis = SystemClock.elapsedRealtime();
+            int rows;
+            db.beginTransactionNonExclusive();
+            try {
+                rows = backfill.runBatch(db, BATCH_SIZE);
+                if (rows == 0) {
+                    db.delete(TABLE_PENDING_BACKFILLS, COLUMN_BACKFILL_NAME + "=?",
+                            new String[] { backfill.getName() });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            longestBatchMillis = Math.max(longestBatchMillis,
+                    SystemClock.elapsedRealtime() - batchStartMillis);
+
+            if (rows == 0) {
+                break;
+            }
+            totalRows += rows;
+            changedSinceNotify = notify;
+            if (changedSinceNotify
+                    && SystemClock.elapsedRealtime() - lastNotifyMillis >= NOTIFY_INTERVAL_MILLIS) {
+                onBatchCommitted.run();
+                lastNotifyMillis = SystemClock.elapsedRealtime();
+                changedSinceNotify = false;
+            }
+            SystemClock.sleep(PAUSE_BETWEEN_BATCHES_MILLIS);
+        }
+        if (changedSinceNotify) {
+            onBatchCommitted.run();
+        }
+
+        Log.d(LOG_TAG, "Backfill " + backfill.getName() + " processed " + totalRows + " rows in "
+                + (SystemClock.elapsedRealtime() - startMillis) + " ms, longest batch "
+                + longestBatchMillis + " ms");
+    }
+
+    // Returns the names of all pending backfills, in the order they were scheduled
+    private static List<String> getPendingNames(SQLiteDatabase db) {
+        List<String> names = new ArrayList<String>();
+        Cursor cursor = db.query(TABLE_PENDING_BACKFILLS, new String[] { COLUMN_BACKFILL_NAME },
+                null, null, null, null, "rowid");
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+}
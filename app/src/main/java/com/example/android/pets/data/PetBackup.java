@@ -0,0 +1,424 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.MedicalEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hot backup and restore of shelter.db while the provider keeps serving reads and writes.
+ *
+ * A backup is a consistent copy of the database as of one moment. From SQLite 3.27 on it is
+ * written by VACUUM INTO on a read-only connection of its own, whose read transaction doesn't
+ * hold up the provider's writes under write-ahead logging. Older versions copy the files
+ * instead: checkpoints are held off so the main file can't change, the main file is copied
+ * without any lock, and only the write-ahead log, which holds what was written in the meantime,
+ * is copied while writes wait. Either way the backup is checked and renamed into place.
+ *
+ * A restore replaces the contents of the live database with those of a backup in a single
+ * transaction, so readers see either the old pets or the restored ones, and open connections
+ * and cursors stay valid.
+ */
+final class PetBackup {
+
+    private static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /** Directory, below the app's files directory, of the backup files */
+    static final String BACKUP_DIRECTORY = "backups";
+    /** Latest backup, read from PetContract.BACKUP_URI */
+    static final String BACKUP_FILE_NAME = "shelter-backup.db";
+    /** Backup written to PetContract.BACKUP_URI, restored by PetContract.METHOD_RESTORE */
+    static final String RESTORE_FILE_NAME = "shelter-restore.db";
+
+    // Name, in the databases directory, of the copy of a backup that is migrated and read
+    // during a restore
+    private static final String RESTORE_DATABASE_NAME = "shelter-restore.db";
+
+    // First SQLite version with VACUUM INTO, in the format of toVersionNumber()
+    private static final int VACUUM_INTO_VERSION = 3027000;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Tables a restore copies, parents first. The section counts and the kennel index are
+    // rebuilt by the pets triggers as the rows are inserted. The pending backfills aren't
+    // copied: those of the backup have run on its copy, and those of the live database still
+    // have to run on it.
+    private static final String[] RESTORED_TABLES = {
+            BreedEntry.TABLE_NAME,
+            PetEntry.TABLE_NAME,
+            MedicalEntry.TABLE_NAME,
+            PetEntry.ARCHIVE_TABLE_NAME,
+            MedicalEntry.ARCHIVE_TABLE_NAME};
+
+    // SQLite's table of the last _ID of each AUTOINCREMENT table
+    private static final String SEQUENCE_TABLE = "sqlite_sequence";
+
+    // Nothing observes the copy of a backup being restored
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private PetBackup() {
+    }
+
+    /** What a backup or restore did and how long it took */
+    static final class Stats {
+        // Size of the backup file
+        final long mBytes;
+        // Pets restored, 0 for a backup
+        final int mPets;
+        final long mMillis;
+        // Longest time the provider's writes had to wait
+        final long mWritersBlockedMillis;
+
+        Stats(long bytes, int pets, long millis, long writersBlockedMillis) {
+            mBytes = bytes;
+            mPets = pets;
+            mMillis = millis;
+            mWritersBlockedMillis = writersBlockedMillis;
+        }
+
+        long getBytesPerSecond() {
+            return mBytes * 1000 / Math.max(1, mMillis);
+        }
+    }
+
+    /**
+     * Writes a consistent copy of the given live database to the given file, replacing it.
+     */
+    static synchronized Stats backup(SQLiteDatabase db, File file) throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        deleteDatabaseFiles(tempFile);
+
+        long writersBlockedMillis = 0;
+        try {
+            if (toVersionNumber(DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()",
+                    null)) >= VACUUM_INTO_VERSION) {
+                vacuumInto(db.getPath(), tempFile);
+            } else {
+                writersBlockedMillis = copyDatabaseFiles(db, tempFile);
+            }
+            checkBackup(tempFile);
+        } catch (SQLiteException e) {
+            deleteDatabaseFiles(tempFile);
+            throw new IOException("Failed to back up " + db.getPath(), e);
+        }
+
+        // Make sure the backup is on disk before the rename makes it the latest one
+        FileOutputStream out = new FileOutputStream(tempFile, true);
+        try {
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            deleteDatabaseFiles(tempFile);
+            throw new IOException("Failed to replace " + file);
+        }
+
+        Stats stats = new Stats(file.length(), 0, SystemClock.elapsedRealtime() - startMillis,
+                writersBlockedMillis);
+        Log.d(LOG_TAG, "Backed up " + stats.mBytes + " bytes in " + stats.mMillis + " ms ("
+                + stats.getBytesPerSecond() + " bytes/s), writers blocked for at most "
+                + stats.mWritersBlockedMillis + " ms");
+        return stats;
+    }
+
+    /**
+     * Replaces the pets, breeds, medical records and archives of the given live database with
+     * those of the backup in the given file. A backup from an older schema version is migrated
+     * first.
+     *
+     * @throws IOException if the file isn't a valid backup; the live database is unchanged
+     */
+    static synchronized Stats restore(Context context, SQLiteDatabase db, File file)
+            throws IOException {
+        long startMillis = SystemClock.elapsedRealtime();
+        if (!file.isFile()) {
+            throw new FileNotFoundException("No backup to restore at " + file);
+        }
+
+        // Work on a copy, so the migration doesn't change the backup itself
+        context.deleteDatabase(RESTORE_DATABASE_NAME);
+        File copy = context.getDatabasePath(RESTORE_DATABASE_NAME);
+        copyFile(file, copy);
+
+        PetDbHelper helper = null;
+        try {
+            checkBackup(copy);
+            helper = new PetDbHelper(context, RESTORE_DATABASE_NAME);
+            SQLiteDatabase backup = helper.getWritableDatabase();
+            // Finish the migration on the copy, since data only an older schema has, such as
+            // the free text breeds, isn't copied
+            PetBackfillRunner.runPending(backup, NO_OP);
+
+            long blockedStartMillis = SystemClock.elapsedRealtime();
+            int pets = 0;
+            db.beginTransaction();
+            try {
+                long[] sequences = new long[RESTORED_TABLES.length];
+                for (int i = RESTORED_TABLES.length - 1; i >= 0; i--) {
+                    sequences[i] = getSequence(db, RESTORED_TABLES[i]);
+                    db.delete(RESTORED_TABLES[i], null, null);
+                }
+                for (int i = 0; i < RESTORED_TABLES.length; i++) {
+                    int rows = copyRows(backup, db, RESTORED_TABLES[i]);
+                    if (RESTORED_TABLES[i].equals(PetEntry.TABLE_NAME)) {
+                        pets = rows;
+                    }
+                    // Never hand out an _ID again that either database already used
+                    setSequence(db, RESTORED_TABLES[i],
+                            Math.max(sequences[i], getSequence(backup, RESTORED_TABLES[i])));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long writersBlockedMillis = SystemClock.elapsedRealtime() - blockedStartMillis;
+
+            Stats stats = new Stats(file.length(), pets,
+                    SystemClock.elapsedRealtime() - startMillis, writersBlockedMillis);
+            Log.d(LOG_TAG, "Restored " + pets + " pets in " + stats.mMillis
+                    + " ms, writers blocked for " + writersBlockedMillis + " ms");
+            return stats;
+        } catch (SQLiteException e) {
+            throw new IOException("Failed to restore " + file, e);
+        } finally {
+            if (helper != null) {
+                helper.close();
+            }
+            context.deleteDatabase(RESTORE_DATABASE_NAME);
+        }
+    }
+
+    // Writes the database at the given path to the target with VACUUM INTO. The dedicated
+    // read-only connection keeps the provider's connection pool free for its own work.
+    private static void vacuumInto(String path, File target) {
+        SQLiteDatabase source = SQLiteDatabase.openDatabase(path, null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            source.execSQL("VACUUM INTO ?", new Object[] { target.getPath() });
+        } finally {
+            source.close();
+        }
+    }
+
+    /*
+    * Copies the files of the live database to the target, and the write-ahead log, if any, next
+    * to it. With checkpoints held off, writes only append to the log and the main file doesn't
+    * change, so it is copied while writes go on. The log is copied inside a transaction, which
+    * holds the provider's only writing connection. Returns how long writes were blocked.
+    * */
+    private static long copyDatabaseFiles(SQLiteDatabase db, File target) throws IOException {
+        File databaseFile = new File(db.getPath());
+        File walFile = new File(db.getPath() + "-wal");
+
+        if (!"wal".equalsIgnoreCase(
+                DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null))) {
+            // Without a log every write changes the main file, so it is copied under the lock
+            long blockedStartMillis = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                copyFile(databaseFile, target);
+            } finally {
+                db.endTransaction();
+            }
+            return SystemClock.elapsedRealtime() - blockedStartMillis;
+        }
+
+        int autoCheckpointPages = setAutoCheckpoint(db, 0);
+        try {
+            copyFile(databaseFile, target);
+
+            long blockedStartMillis = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                if (walFile.exists()) {
+                    copyFile(walFile, new File(target.getPath() + "-wal"));
+                }
+            } finally {
+                db.endTransaction();
+            }
+            return SystemClock.elapsedRealtime() - blockedStartMillis;
+        } finally {
+            setAutoCheckpoint(db, autoCheckpointPages);
+        }
+    }
+
+    // Sets the number of log pages after which a commit checkpoints, 0 for never, and returns
+    // the previous value. Checkpoints run on the writing connection, which a transaction holds,
+    // so the pragma is run in one.
+    private static int setAutoCheckpoint(SQLiteDatabase db, int pages) {
+        db.beginTransactionNonExclusive();
+        try {
+            int previousPages = (int) DatabaseUtils.longForQuery(db,
+                    "PRAGMA wal_autocheckpoint", null);
+            DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + pages, null);
+            db.setTransactionSuccessful();
+            return previousPages;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+    * Opens a backup on its own, which folds a copied write-ahead log into the main file, and
+    * checks it is an intact shelter database no newer than this app.
+    * */
+    private static void checkBackup(File file) throws IOException {
+        SQLiteDatabase backup = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            DatabaseUtils.stringForQuery(backup, "PRAGMA journal_mode=DELETE", null);
+            String check = DatabaseUtils.stringForQuery(backup, "PRAGMA quick_check", null);
+            if (!"ok".equals(check)) {
+                throw new IOException(file + " failed its integrity check: " + check);
+            }
+            int version = backup.getVersion();
+            if (version < 1 || version > PetMigrations.LATEST_VERSION) {
+                throw new IOException(file + " isn't a shelter database of a known version");
+            }
+        } finally {
+            backup.close();
+        }
+    }
+
+    // Copies the rows of a table between two databases, in the columns both of them have.
+    // Returns the number of rows copied.
+    private static int copyRows(SQLiteDatabase source, SQLiteDatabase target, String table) {
+        List<String> columns = getColumns(target, table);
+        columns.retainAll(getColumns(source, table));
+
+        SQLiteStatement insert = target.compileStatement("INSERT INTO " + table + " (" +
+                TextUtils.join(", ", columns) + ") VALUES (" +
+                PetProvider.makePlaceholders(columns.size()) + ")");
+        Cursor cursor = source.query(table, columns.toArray(new String[columns.size()]),
+                null, null, null, null, null);
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns.size(); i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            insert.bindNull(i + 1);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            insert.bindLong(i + 1, cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            insert.bindDouble(i + 1, cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            insert.bindBlob(i + 1, cursor.getBlob(i));
+                            break;
+                        default:
+                            insert.bindString(i + 1, cursor.getString(i));
+                            break;
+                    }
+                }
+                insert.executeInsert();
+                rows++;
+            }
+            return rows;
+        } finally {
+            cursor.close();
+            insert.close();
+        }
+    }
+
+    // Returns the column names of the given table
+    private static List<String> getColumns(SQLiteDatabase db, String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    // Returns the last _ID handed out for the given AUTOINCREMENT table, 0 if none
+    private static long getSequence(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT ifnull(max(seq), 0) FROM " +
+                SEQUENCE_TABLE + " WHERE name = ?", new String[] { table });
+    }
+
+    // Sets the last _ID handed out for the given table, if it is an AUTOINCREMENT table
+    private static void setSequence(SQLiteDatabase db, String table, long sequence) {
+        ContentValues values = new ContentValues();
+        values.put("seq", sequence);
+        int rows = db.update(SEQUENCE_TABLE, values, "name = ?", new String[] { table });
+        if (rows == 0 && sequence > 0) {
+            values.put("name", table);
+            db.insert(SEQUENCE_TABLE, null, values);
+        }
+    }
+
+    // Copies a file and syncs the copy to disk
+    static void copyFile(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, length);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Deletes a database file along with its log and journal files
+    private static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    // Returns "3.28.0" as 3028000
+    private static int toVersionNumber(String version) {
+        String[] parts = version.split("\\.");
+        int number = 0;
+        for (int i = 0; i < 3; i++) {
+            number = number * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+        }
+        return number;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client side helper for {@link PetContract#METHOD_GET_PETS_BY_ID}. Splits a request for any
+ * number of pets into calls of at most {@link PetContract#MAX_IDS_PER_CALL} IDs, which keeps
+ * every reply well under the binder transaction limit, and merges the replies.
+ */
+public final class PetBatchLookup {
+
+    private PetBatchLookup() {
+    }
+
+    /**
+     * Returns the given columns of the pets with the given IDs, in the format described in
+     * {@link PetContract#METHOD_GET_PETS_BY_ID}. IDs that don't exist are left out.
+     *
+     * @param projection Columns to return, or null for name, breed, gender and weight
+     */
+    public static Bundle getPetsById(ContentResolver resolver, long[] ids, String[] projection) {
+        List<Bundle> replies = new ArrayList<Bundle>();
+        int start = 0;
+        do {
+            int end = Math.min(ids.length, start + PetContract.MAX_IDS_PER_CALL);
+            long[] chunk = new long[end - start];
+            System.arraycopy(ids, start, chunk, 0, chunk.length);
+
+            Bundle request = new Bundle();
+            request.putLongArray(PetContract.EXTRA_IDS, chunk);
+            if (projection != null) {
+                request.putStringArray(PetContract.EXTRA_PROJECTION, projection);
+            }
+            replies.add(resolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_GET_PETS_BY_ID,
+                    null, request));
+            start = end;
+        } while (start < ids.length);
+
+        return replies.size() == 1 ? replies.get(0) : merge(replies);
+    }
+
+    // Returns a Bundle holding, for every key, the arrays of all replies one after the other
+    private static Bundle merge(List<Bundle> replies) {
+        Bundle merged = new Bundle();
+        for (String key : replies.get(0).keySet()) {
+            Object firstValue = replies.get(0).get(key);
+            int total = 0;
+            for (Bundle reply : replies) {
+                total += Array.getLength(reply.get(key));
+            }
+
+            // Copy the array of every reply into one array of the same type
+            Object values = Array.newInstance(firstValue.getClass().getComponentType(), total);
+            int offset = 0;
+            for (Bundle reply : replies) {
+                Object replyValues = reply.get(key);
+                int length = Array.getLength(replyValues);
+                System.arraycopy(replyValues, 0, values, offset, length);
+                offset += length;
+            }
+
+            if (values instanceof long[]) {
+                merged.putLongArray(key, (long[]) values);
+            } else if (values instanceof int[]) {
+                merged.putIntArray(key, (int[]) values);
+            } else if (values instanceof String[]) {
+                merged.putStringArray(key, (String[]) values);
+            }
+        }
+        return merged;
+    }
+}
@@ -18,6 +18,143 @@ public final class PetContract {
     private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     // Possible path to the pets table
     public static final String PATH_PETS = "pets";
+    // Path, below a single pet, to the medical records of that pet
+    public static final String PATH_MEDICAL = "medical";
+    // Path, below the pets path, to the pets joined with their medical status
+    public static final String PATH_SUMMARY = "summary";
+    // Path, below the pets path, to all pets including the archived ones
+    public static final String PATH_HISTORY = "history";
+    // Path, below the pets path, to the pets in a kennel area
+    public static final String PATH_AREA = "area";
+    // Path, below the pets path, to the number of pets in each alphabet section
+    public static final String PATH_SECTIONS = "sections";
+    // Path to the latest backup of the shelter database
+    public static final String PATH_BACKUP = "backup";
+
+    /**
+     * The latest backup written by METHOD_BACKUP, as a SQLite database file. Opening it for
+     * writing stages a backup, for example one kept off the device, for METHOD_RESTORE.
+     */
+    public static final Uri BACKUP_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BACKUP);
+
+    /** The MIME type of the {@link #BACKUP_URI} */
+    public static final String BACKUP_MIME_TYPE = "application/vnd.sqlite3";
+
+    // Method for ContentResolver.call() that returns the provider's query cache statistics
+    // in a Bundle with the EXTRA_CACHE_HITS and EXTRA_CACHE_MISSES keys
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "getQueryCacheStats";
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    // Method for ContentResolver.call() that returns many pets in one round trip. The request
+    // Bundle holds the pet IDs as a long[] under EXTRA_IDS, and optionally the wanted columns as
+    // a String[] under EXTRA_PROJECTION (name, breed, gender and weight by default). The result
+    // holds the IDs that were found as a long[] under EXTRA_IDS, and each requested column,
+    // keyed by its column name, as a String[] or int[] in the same order.
+    // Use PetBatchLookup to split large requests into calls of at most MAX_IDS_PER_CALL IDs.
+    public static final String METHOD_GET_PETS_BY_ID = "getPetsById";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_PROJECTION = "projection";
+    public static final int MAX_IDS_PER_CALL = 1000;
+
+    // Method for ContentResolver.call() that exports the catalog to the KioskSnapshot file read
+    // by the kiosk mode. The result holds the number of pets written under EXTRA_PET_COUNT,
+    // or -1 if the export failed. The provider also exports the file when it starts and, in
+    // the background, a couple of seconds after writes that changed pets settle (at most ten
+    // seconds after the first one), restores included. The file is only guaranteed to hold
+    // every committed write once this call returns; otherwise it may lag by that delay, or
+    // until the next start if the process died first.
+    public static final String METHOD_EXPORT_KIOSK_SNAPSHOT = "exportKioskSnapshot";
+    public static final String EXTRA_PET_COUNT = "pet_count";
+
+    // Method for ContentResolver.call() that finds pets that are likely the same animal as a
+    // new one. The request Bundle holds the COLUMN_PET_NAME, COLUMN_PET_BREED and
+    // COLUMN_PET_GENDER of the new pet, and optionally the _ID of a pet to leave out as a long
+    // under EXTRA_EXCLUDE_ID. The result holds the matching pets, best first, as a long[] under
+    // EXTRA_IDS, their names as a String[] under COLUMN_PET_NAME and their similarity from 0
+    // to 1 as a float[] under EXTRA_SCORES.
+    public static final String METHOD_FIND_DUPLICATES = "findDuplicates";
+    public static final String EXTRA_EXCLUDE_ID = "exclude_id";
+    public static final String EXTRA_SCORES = "scores";
+
+    // Method for ContentResolver.call() that reports likely duplicates among the existing pets.
+    // The result holds up to MAX_IDS_PER_CALL pairs, best first: the _ID of the first pet of
+    // each pair as a long[] under EXTRA_IDS, the _ID of the second as a long[] under
+    // EXTRA_DUPLICATE_IDS and their similarity as a float[] under EXTRA_SCORES.
+    public static final String METHOD_GET_DUPLICATE_REPORT = "getDuplicateReport";
+    public static final String EXTRA_DUPLICATE_IDS = "duplicate_ids";
+
+    // Methods for ContentResolver.call() that update or delete many pets in one transaction,
+    // with one change notification. The request Bundle holds the pet IDs as a long[] under
+    // EXTRA_IDS, any number of them, and for an update the new values as ContentValues
+    // under EXTRA_VALUES. The result holds the number of pets changed under EXTRA_PET_COUNT.
+    public static final String METHOD_UPDATE_PETS_BY_ID = "updatePetsById";
+    public static final String METHOD_DELETE_PETS_BY_ID = "deletePetsById";
+    public static final String EXTRA_VALUES = "values";
+
+    // Method for ContentResolver.call() that backs up the shelter database to BACKUP_URI while
+    // the app keeps reading and writing it. The result holds the size of the backup under
+    // EXTRA_BACKUP_BYTES, -1 if it failed, how long it took under EXTRA_DURATION_MILLIS, the
+    // throughput under EXTRA_BYTES_PER_SECOND and the longest time writes had to wait under
+    // EXTRA_WRITERS_BLOCKED_MILLIS.
+    public static final String METHOD_BACKUP = "backup";
+    public static final String EXTRA_BACKUP_BYTES = "backup_bytes";
+    public static final String EXTRA_DURATION_MILLIS = "duration_millis";
+    public static final String EXTRA_BYTES_PER_SECOND = "bytes_per_second";
+    public static final String EXTRA_WRITERS_BLOCKED_MILLIS = "writers_blocked_millis";
+
+    // Method for ContentResolver.call() that replaces all pets, breeds and medical records with
+    // those of the backup last written to BACKUP_URI, in one transaction. The result holds the
+    // number of pets restored under EXTRA_PET_COUNT, -1 if the backup isn't valid and nothing
+    // changed, along with EXTRA_DURATION_MILLIS and EXTRA_WRITERS_BLOCKED_MILLIS.
+    public static final String METHOD_RESTORE = "restore";
+
+    // Methods for ContentResolver.call() that record every provider operation to a trace, and
+    // replay a trace against a separate copy of the database. Starting a trace takes the name
+    // of the trace as the arg, DEFAULT_TRACE_NAME if null, and first backs up the database so
+    // the replay starts from the same pets. The result of starting or stopping holds the number
+    // of operations recorded under EXTRA_OPERATION_COUNT, -1 if recording failed to start or
+    // wasn't running. Replaying takes the name of the trace as the arg, and optionally the
+    // number of threads as an int under EXTRA_THREADS, 1 by default, whether to keep the
+    // recorded pace as a boolean under EXTRA_REAL_TIME, false by default, and an
+    // android.os.ResultReceiver under EXTRA_RESULT_RECEIVER. It returns right away with an empty
+    // result and replays on a background thread, one replay at a time, without notifying the
+    // app's observers. Once done, the receiver is sent REPLAY_FINISHED and a report holding the
+    // number of operations replayed under EXTRA_OPERATION_COUNT, -1 if the trace couldn't be
+    // read, those that threw under EXTRA_FAILED_COUNT, those that returned or changed a
+    // different number of rows than recorded under EXTRA_DIVERGED_COUNT,
+    // EXTRA_DURATION_MILLIS, EXTRA_OPERATIONS_PER_SECOND, and the 50th, 90th, 99th percentile
+    // and maximum latency in microseconds as a long[] under EXTRA_LATENCY_MICROS.
+    public static final String METHOD_START_TRACE = "startTrace";
+    public static final String METHOD_STOP_TRACE = "stopTrace";
+    public static final String METHOD_REPLAY_TRACE = "replayTrace";
+    public static final String DEFAULT_TRACE_NAME = "provider-trace";
+    public static final String EXTRA_OPERATION_COUNT = "operation_count";
+    public static final String EXTRA_THREADS = "threads";
+    public static final String EXTRA_REAL_TIME = "real_time";
+    public static final String EXTRA_RESULT_RECEIVER = "result_receiver";
+    public static final int REPLAY_FINISHED = 0;
+    public static final String EXTRA_FAILED_COUNT = "failed_count";
+    public static final String EXTRA_DIVERGED_COUNT = "diverged_count";
+    public static final String EXTRA_OPERATIONS_PER_SECOND = "operations_per_second";
+    public static final String EXTRA_LATENCY_MICROS = "latency_micros";
+
+    // Method for ContentResolver.call() that measures how queries scale with the number of
+    // concurrent readers, on a backup of the database with the query cache off. It optionally
+    // takes the numbers of concurrent threads to run as an int[] under
+    // EXTRA_CONCURRENCY_LEVELS, {1, 2, 4, 8, 16} by default, the queries each level runs as an
+    // int under EXTRA_OPERATION_COUNT, 2000 by default, and an android.os.ResultReceiver under
+    // EXTRA_RESULT_RECEIVER. It returns right away with an empty result and runs on a
+    // background thread, one load test at a time. Once done, the receiver is sent
+    // LOAD_TEST_FINISHED and a report holding the levels under EXTRA_CONCURRENCY_LEVELS, the
+    // queries per level under EXTRA_OPERATION_COUNT, -1 if the test couldn't run, the queries
+    // that threw under EXTRA_FAILED_COUNT, and for each level the queries per second under
+    // EXTRA_OPERATIONS_PER_SECOND and the 99th percentile latency in microseconds under
+    // EXTRA_P99_LATENCY_MICROS, as long[]s.
+    public static final String METHOD_LOAD_TEST = "loadTest";
+    public static final String EXTRA_CONCURRENCY_LEVELS = "concurrency_levels";
+    public static final int LOAD_TEST_FINISHED = 1;
+    public static final String EXTRA_P99_LATENCY_MICROS = "p99_latency_micros";
 
     // To prevent someone from accidentally instantiating the contract class,
     // give it an empty constructor.
@@ -31,6 +168,33 @@ public final class PetContract {
         // Content URI to access the pet data in the provider
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        // Content URI of every pet with the pet columns plus COLUMN_PENDING_MEDICAL_COUNT and
+        // COLUMN_NEXT_MEDICAL_DUE_DATE, read in a single query. Read only.
+        public static final Uri SUMMARY_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SUMMARY);
+
+        // Content URI of every pet the shelter ever had: the pets of CONTENT_URI followed by the
+        // archived ones, with COLUMN_PET_ARCHIVED telling them apart. Read only.
+        public static final Uri HISTORY_URI = Uri.withAppendedPath(CONTENT_URI, PATH_HISTORY);
+
+        // Content URI of the pets whose kennel lies in an area of one building, see
+        // buildAreaUri(). Read only.
+        public static final Uri AREA_URI = Uri.withAppendedPath(CONTENT_URI, PATH_AREA);
+
+        // Content URI of the alphabet sections of the pets, with their SectionEntry columns.
+        // Read only.
+        public static final Uri SECTIONS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SECTIONS);
+
+        // Sort order that groups the pets by section, in the order of SECTIONS_URI
+        public static final String SECTION_SORT_ORDER =
+                PetEntry.COLUMN_PET_NAME_SECTION + ", " + PetEntry.COLUMN_PET_NAME;
+
+        // Query parameters of AREA_URI. The bounds are inclusive.
+        public static final String PARAM_BUILDING = "building";
+        public static final String PARAM_MIN_X = "min_x";
+        public static final String PARAM_MAX_X = "max_x";
+        public static final String PARAM_MIN_Y = "min_y";
+        public static final String PARAM_MAX_Y = "max_y";
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -45,24 +209,75 @@ public final class PetContract {
 
         // Name of the database table for pets
         public static final String TABLE_NAME = "pets";
+        // Name of the view that joins each pet with its breed name. Queries read from this view
+        // so callers keep seeing a plain COLUMN_PET_BREED text column.
+        public static final String VIEW_NAME = "pet_details";
+        // Name of the table that adopted and transferred pets are moved to after
+        // ARCHIVE_DELAY_MILLIS. It has the same columns as the pets table.
+        public static final String ARCHIVE_TABLE_NAME = "pets_archive";
+        // Name of the view over both the pets and the archive table, read from HISTORY_URI
+        public static final String HISTORY_VIEW_NAME = "pet_history";
         // Unique ID for pet, Type: INTEGER
         public static final String _ID = BaseColumns._ID;
         // Name of pet, Type: STRING
         public static final String COLUMN_PET_NAME = "name";
         // Breed of pet, Type: STRING
         public static final String COLUMN_PET_BREED = "breed";
+        // Breed of pet as the _ID of a row in the {@link BreedEntry} table, Type: INTEGER
+        // Maintained by the provider from COLUMN_PET_BREED, callers don't need to set it
+        public static final String COLUMN_PET_BREED_ID = "breed_id";
         // Gender of pet, Type: INTEGER
         // Possible values are {@link #GENDER_UNKNOWN}, {@link #GENDER_MALE},
         // or {@link #GENDER_FEMALE}
         public static final String COLUMN_PET_GENDER = "gender";
         // Weight of pet (in kg), Type: INTEGER
         public static final String COLUMN_PET_WEIGHT = "weight";
+        // Adoption status of pet, Type: INTEGER
+        // Possible values are {@link #STATUS_AVAILABLE}, {@link #STATUS_ADOPTED},
+        // or {@link #STATUS_TRANSFERRED}
+        public static final String COLUMN_PET_STATUS = "status";
+        // When the status last changed, Type: INTEGER (milliseconds since the epoch)
+        // Set by the provider whenever COLUMN_PET_STATUS is written
+        public static final String COLUMN_PET_STATUS_DATE = "status_date";
+        // Building of the pet's kennel, Type: INTEGER
+        // Null, like the coordinates, for pets without a kennel
+        public static final String COLUMN_PET_KENNEL_BUILDING = "kennel_building";
+        // Position of the pet's kennel on the building's floor plan, Type: REAL
+        public static final String COLUMN_PET_KENNEL_X = "kennel_x";
+        public static final String COLUMN_PET_KENNEL_Y = "kennel_y";
+        // Alphabet section of the pet's name, see getNameSection(), Type: STRING
+        // Maintained by the provider from the name, not written by callers
+        public static final String COLUMN_PET_NAME_SECTION = "name_section";
+        // Blocking key used to find likely duplicates, Type: STRING
+        // Maintained by the provider from the name and breed, not written by callers
+        public static final String COLUMN_PET_DEDUP_KEY = "dedup_key";
+        // Whether the pet has been archived (1) or not (0), Type: INTEGER
+        // Only available from HISTORY_URI
+        public static final String COLUMN_PET_ARCHIVED = "archived";
+
+        // Number of medical records of the pet that aren't completed yet, Type: INTEGER
+        // Only available from SUMMARY_URI
+        public static final String COLUMN_PENDING_MEDICAL_COUNT = "pending_medical_count";
+        // Earliest due date of the pet's medical records that aren't completed yet, or null,
+        // Type: INTEGER (milliseconds since the epoch). Only available from SUMMARY_URI
+        public static final String COLUMN_NEXT_MEDICAL_DUE_DATE = "next_medical_due_date";
 
         // Possible values for pet gender
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
 
+        // Possible values for pet status. Pets that aren't available any more are archived.
+        public static final int STATUS_AVAILABLE = 0;
+        public static final int STATUS_ADOPTED = 1;
+        public static final int STATUS_TRANSFERRED = 2;
+
+        // Section of the names that don't start with a letter from A to Z. Sorts before "A".
+        public static final String OTHER_NAME_SECTION = "#";
+
+        // How long an adopted or transferred pet stays in the pets table before it's archived
+        public static final long ARCHIVE_DELAY_MILLIS = 24L * 60 * 60 * 1000;
+
         /**
          * Returns whether or not the given gender is {@link #GENDER_UNKNOWN}, {@link #GENDER_MALE},
          * or {@link #GENDER_FEMALE}.
@@ -70,5 +285,135 @@ public final class PetContract {
         public static boolean isValidGender(int gender) {
             return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
         }
+
+        /**
+         * Returns the alphabet section of a pet with the given name: its first letter from A
+         * to Z in upper case, or {@link #OTHER_NAME_SECTION} for any other first character.
+         */
+        public static String getNameSection(String name) {
+            String trimmed = name == null ? "" : name.trim();
+            if (trimmed.isEmpty()) {
+                return OTHER_NAME_SECTION;
+            }
+            char first = Character.toUpperCase(trimmed.charAt(0));
+            return first >= 'A' && first <= 'Z'
+                    ? String.valueOf(first) : OTHER_NAME_SECTION;
+        }
+
+        /**
+         * Returns the content URI of the pets whose kennel is in the given building, within
+         * the given bounds (inclusive).
+         */
+        public static Uri buildAreaUri(int building, double minX, double minY, double maxX,
+                                       double maxY) {
+            return AREA_URI.buildUpon()
+                    .appendQueryParameter(PARAM_BUILDING, String.valueOf(building))
+                    .appendQueryParameter(PARAM_MIN_X, String.valueOf(minX))
+                    .appendQueryParameter(PARAM_MAX_X, String.valueOf(maxX))
+                    .appendQueryParameter(PARAM_MIN_Y, String.valueOf(minY))
+                    .appendQueryParameter(PARAM_MAX_Y, String.valueOf(maxY))
+                    .build();
+        }
+
+        /**
+         * Returns whether or not the given status is {@link #STATUS_AVAILABLE},
+         * {@link #STATUS_ADOPTED}, or {@link #STATUS_TRANSFERRED}.
+         */
+        public static boolean isValidStatus(int status) {
+            return status == STATUS_AVAILABLE || status == STATUS_ADOPTED
+                    || status == STATUS_TRANSFERRED;
+        }
+    }
+
+    /* Inner class that defines the medical records table. Every record belongs to one pet and
+    * is deleted together with it. */
+    public static abstract class MedicalEntry implements BaseColumns {
+
+        /**
+         * The MIME type of the medical records of a pet.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_MEDICAL;
+
+        /**
+         * The MIME type of a single medical record.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_MEDICAL;
+
+        // Name of the database table for medical records
+        public static final String TABLE_NAME = "pet_medical";
+        // Name of the table the records of archived pets are moved to
+        public static final String ARCHIVE_TABLE_NAME = "pet_medical_archive";
+        // Unique ID for medical record, Type: INTEGER
+        public static final String _ID = BaseColumns._ID;
+        // _ID of the pet the record belongs to, Type: INTEGER
+        // Set by the provider from the content URI
+        public static final String COLUMN_MEDICAL_PET_ID = "pet_id";
+        // Kind of record, Type: INTEGER
+        // Possible values are {@link #TYPE_VACCINATION}, {@link #TYPE_TREATMENT},
+        // or {@link #TYPE_CHECKUP}
+        public static final String COLUMN_MEDICAL_TYPE = "type";
+        // What was or has to be done, e.g. the vaccine name, Type: STRING
+        public static final String COLUMN_MEDICAL_DESCRIPTION = "description";
+        // When the record is due, or null, Type: INTEGER (milliseconds since the epoch)
+        public static final String COLUMN_MEDICAL_DUE_DATE = "due_date";
+        // When the record was completed, or null while it is pending,
+        // Type: INTEGER (milliseconds since the epoch)
+        public static final String COLUMN_MEDICAL_COMPLETED_DATE = "completed_date";
+
+        // Possible values for medical record type
+        public static final int TYPE_VACCINATION = 0;
+        public static final int TYPE_TREATMENT = 1;
+        public static final int TYPE_CHECKUP = 2;
+
+        /**
+         * Returns the content URI of the medical records of the pet with the given ID.
+         */
+        public static Uri buildPetMedicalUri(long petId) {
+            return PetEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(petId))
+                    .appendPath(PATH_MEDICAL)
+                    .build();
+        }
+
+        /**
+         * Returns whether or not the given type is {@link #TYPE_VACCINATION},
+         * {@link #TYPE_TREATMENT}, or {@link #TYPE_CHECKUP}.
+         */
+        public static boolean isValidType(int type) {
+            return type == TYPE_VACCINATION || type == TYPE_TREATMENT || type == TYPE_CHECKUP;
+        }
+    }
+
+    /* Inner class that defines the section counts table. It holds the number of pets in each
+    * alphabet section of COLUMN_PET_NAME_SECTION, kept up to date by triggers on the pets
+    * table, so the catalog's section index is one small read whatever the number of pets. */
+    public static abstract class SectionEntry {
+
+        /**
+         * The MIME type of the {@link PetEntry#SECTIONS_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + CONTENT_AUTHORITY + "/" + PATH_SECTIONS;
+
+        // Name of the database table for section counts
+        public static final String TABLE_NAME = "pet_sections";
+        // Section, as returned by PetEntry.getNameSection(), unique, Type: STRING
+        public static final String COLUMN_SECTION_NAME = "section";
+        // Number of pets in the section, Type: INTEGER
+        public static final String COLUMN_SECTION_PET_COUNT = "pet_count";
+    }
+
+    /* Inner class that defines the breeds table. Each distinct breed name is stored once and
+    * referenced from the pets table by COLUMN_PET_BREED_ID. */
+    public static abstract class BreedEntry implements BaseColumns {
+
+        // Name of the database table for breeds
+        public static final String TABLE_NAME = "breeds";
+        // Unique ID for breed, Type: INTEGER
+        public static final String _ID = BaseColumns._ID;
+        // Name of breed, unique, Type: STRING
+        public static final String COLUMN_BREED_NAME = "name";
     }
 }
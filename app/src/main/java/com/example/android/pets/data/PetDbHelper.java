@@ -1,10 +1,18 @@
 package com.example.android.pets.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import static com.example.android.pets.data.PetContract.BreedEntry;
+import static com.example.android.pets.data.PetContract.MedicalEntry;
 import static com.example.android.pets.data.PetContract.PetEntry;
+import static com.example.android.pets.data.PetContract.SectionEntry;
 
 /**
  * Created by namlu on 11-May-17.
@@ -13,11 +21,171 @@ import static com.example.android.pets.data.PetContract.PetEntry;
 public class PetDbHelper extends SQLiteOpenHelper {
 
     private static final String TAG = PetDbHelper.class.getSimpleName();
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = PetMigrations.LATEST_VERSION;
     private static final String DATABASE_NAME = "shelter.db";
 
+    // SQL statement to create the breeds table
+    static final String SQL_CREATE_BREEDS_TABLE =
+            "CREATE TABLE " + BreedEntry.TABLE_NAME + " (" +
+                    BreedEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    BreedEntry.COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE);";
+
+    // SQL statement to index the breed of every pet, used by breed filters
+    static final String PETS_BREED_INDEX = "pets_breed_id_index";
+    static final String SQL_CREATE_PETS_BREED_INDEX =
+            "CREATE INDEX " + PETS_BREED_INDEX + " ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_BREED_ID + ");";
+
+    // SQL statement to create the medical records table. Records are deleted with their pet.
+    static final String SQL_CREATE_MEDICAL_TABLE =
+            "CREATE TABLE " + MedicalEntry.TABLE_NAME + " (" +
+                    MedicalEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    MedicalEntry.COLUMN_MEDICAL_PET_ID + " INTEGER NOT NULL REFERENCES " +
+                    PetEntry.TABLE_NAME + " (" + PetEntry._ID + ") ON DELETE CASCADE, " +
+                    MedicalEntry.COLUMN_MEDICAL_TYPE + " INTEGER NOT NULL DEFAULT 0, " +
+                    MedicalEntry.COLUMN_MEDICAL_DESCRIPTION + " TEXT NOT NULL, " +
+                    MedicalEntry.COLUMN_MEDICAL_DUE_DATE + " INTEGER, " +
+                    MedicalEntry.COLUMN_MEDICAL_COMPLETED_DATE + " INTEGER);";
+
+    // SQL statement to index the medical records of each pet. Serves the records of one pet,
+    // the cascade on delete, and the pending count and next due date of the summary query.
+    static final String SQL_CREATE_MEDICAL_PET_INDEX =
+            "CREATE INDEX pet_medical_pet_index ON " + MedicalEntry.TABLE_NAME + " (" +
+                    MedicalEntry.COLUMN_MEDICAL_PET_ID + ", " +
+                    MedicalEntry.COLUMN_MEDICAL_COMPLETED_DATE + ", " +
+                    MedicalEntry.COLUMN_MEDICAL_DUE_DATE + ");";
+
+    // SQL statement to index pets by status, used to find the pets that are due for archiving
+    static final String PETS_STATUS_INDEX = "pets_status_index";
+    static final String SQL_CREATE_PETS_STATUS_INDEX =
+            "CREATE INDEX " + PETS_STATUS_INDEX + " ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_STATUS + ", " + PetEntry.COLUMN_PET_STATUS_DATE + ");";
+
+    // SQL statement to index the duplicate detection key of every pet
+    static final String PETS_DEDUP_KEY_INDEX = "pets_dedup_key_index";
+    static final String SQL_CREATE_PETS_DEDUP_KEY_INDEX =
+            "CREATE INDEX " + PETS_DEDUP_KEY_INDEX + " ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_DEDUP_KEY + ");";
+
+    // SQL statement to index the pets in catalog order, by section and name
+    static final String PETS_NAME_SECTION_INDEX = "pets_name_section_index";
+    static final String SQL_CREATE_PETS_NAME_SECTION_INDEX =
+            "CREATE INDEX " + PETS_NAME_SECTION_INDEX + " ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_NAME_SECTION + ", " + PetEntry.COLUMN_PET_NAME + ");";
+
+    // SQL statement to create the archive of pets that were adopted or transferred. IDs are
+    // kept from the pets table, which never reuses them.
+    static final String SQL_CREATE_PETS_ARCHIVE_TABLE =
+            "CREATE TABLE " + PetEntry.ARCHIVE_TABLE_NAME + " (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY, " +
+                    PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+                    PetEntry.COLUMN_PET_BREED_ID + " INTEGER REFERENCES " +
+                    BreedEntry.TABLE_NAME + " (" + BreedEntry._ID + "), " +
+                    PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+                    PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL, " +
+                    PetEntry.COLUMN_PET_STATUS_DATE + " INTEGER, " +
+                    PetEntry.COLUMN_PET_KENNEL_BUILDING + " INTEGER, " +
+                    PetEntry.COLUMN_PET_KENNEL_X + " REAL, " +
+                    PetEntry.COLUMN_PET_KENNEL_Y + " REAL, " +
+                    PetEntry.COLUMN_PET_NAME_SECTION + " TEXT);";
+
+    // SQL statement to create the archive of the medical records of archived pets
+    static final String SQL_CREATE_MEDICAL_ARCHIVE_TABLE =
+            "CREATE TABLE " + MedicalEntry.ARCHIVE_TABLE_NAME + " (" +
+                    MedicalEntry._ID + " INTEGER PRIMARY KEY, " +
+                    MedicalEntry.COLUMN_MEDICAL_PET_ID + " INTEGER NOT NULL, " +
+                    MedicalEntry.COLUMN_MEDICAL_TYPE + " INTEGER NOT NULL, " +
+                    MedicalEntry.COLUMN_MEDICAL_DESCRIPTION + " TEXT NOT NULL, " +
+                    MedicalEntry.COLUMN_MEDICAL_DUE_DATE + " INTEGER, " +
+                    MedicalEntry.COLUMN_MEDICAL_COMPLETED_DATE + " INTEGER);";
+
+    // SQL statement to index the archived medical records by pet
+    static final String SQL_CREATE_MEDICAL_ARCHIVE_PET_INDEX =
+            "CREATE INDEX pet_medical_archive_pet_index ON " + MedicalEntry.ARCHIVE_TABLE_NAME +
+                    " (" + MedicalEntry.COLUMN_MEDICAL_PET_ID + ");";
+
+    // Columns shared by the pets and the archive table, in the same order. Used to copy pets
+    // into the archive and to build the views.
+    static final String[] PET_TABLE_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED_ID,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_STATUS,
+            PetEntry.COLUMN_PET_STATUS_DATE,
+            PetEntry.COLUMN_PET_KENNEL_BUILDING,
+            PetEntry.COLUMN_PET_KENNEL_X,
+            PetEntry.COLUMN_PET_KENNEL_Y,
+            PetEntry.COLUMN_PET_NAME_SECTION};
+
+    // Columns shared by the medical records and the medical archive table, in the same order
+    static final String[] MEDICAL_TABLE_COLUMNS = {
+            MedicalEntry._ID,
+            MedicalEntry.COLUMN_MEDICAL_PET_ID,
+            MedicalEntry.COLUMN_MEDICAL_TYPE,
+            MedicalEntry.COLUMN_MEDICAL_DESCRIPTION,
+            MedicalEntry.COLUMN_MEDICAL_DUE_DATE,
+            MedicalEntry.COLUMN_MEDICAL_COMPLETED_DATE};
+
+    // R*Tree of the kennel of every pet that has one, keyed by pet _ID. Each kennel is a point,
+    // stored as a box with equal minimum and maximum, and the building is a dimension of its
+    // own so an area query never looks at other buildings.
+    static final String KENNEL_RTREE_TABLE = "pets_kennel_rtree";
+
+    // Fallback index for SQLite builds without the R*Tree module. Serves the building and the
+    // x range; y is checked on the rows found.
+    static final String PETS_KENNEL_INDEX = "pets_kennel_index";
+    static final String SQL_CREATE_PETS_KENNEL_INDEX =
+            "CREATE INDEX " + PETS_KENNEL_INDEX + " ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_KENNEL_BUILDING + ", " + PetEntry.COLUMN_PET_KENNEL_X +
+                    ", " + PetEntry.COLUMN_PET_KENNEL_Y + ");";
+
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    // Opens a shelter database of another name, such as a backup being restored
+    PetDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // Use write-ahead logging so that provider queries coming in on different binder and
+        // loader threads read in parallel from the framework's connection pool, and aren't
+        // blocked by a write in progress.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database connection is being configured, before it is created
+     * or upgraded.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+
+        // Enforce foreign keys so deleting a pet also deletes its medical records
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    /**
+     * This is called when the database has been opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Before Jelly Bean, write-ahead logging has to be enabled on the open database instead
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+        // onConfigure isn't called before Jelly Bean either, so enable foreign keys here
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.execSQL("PRAGMA foreign_keys=ON;");
+        }
     }
 
     /**
@@ -25,23 +193,183 @@ public class PetDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_BREEDS_TABLE);
+
         // Create a String that contains the SQL statement to create the pets table
         String SQL_CREATE_PETS_TABLE =
                 "CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
                         PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                         PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
-                        PetEntry.COLUMN_PET_BREED + " TEXT, " +
+                        PetEntry.COLUMN_PET_BREED_ID + " INTEGER REFERENCES " +
+                        BreedEntry.TABLE_NAME + " (" + BreedEntry._ID + "), " +
                         PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
-                        PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+                        PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+                        PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT " +
+                        PetEntry.STATUS_AVAILABLE + ", " +
+                        PetEntry.COLUMN_PET_STATUS_DATE + " INTEGER, " +
+                        PetEntry.COLUMN_PET_DEDUP_KEY + " TEXT, " +
+                        PetEntry.COLUMN_PET_KENNEL_BUILDING + " INTEGER, " +
+                        PetEntry.COLUMN_PET_KENNEL_X + " REAL, " +
+                        PetEntry.COLUMN_PET_KENNEL_Y + " REAL, " +
+                        PetEntry.COLUMN_PET_NAME_SECTION + " TEXT);";
 
         db.execSQL(SQL_CREATE_PETS_TABLE);
+        db.execSQL(SQL_CREATE_PETS_BREED_INDEX);
+        db.execSQL(SQL_CREATE_PETS_STATUS_INDEX);
+        db.execSQL(SQL_CREATE_PETS_DEDUP_KEY_INDEX);
+        db.execSQL(SQL_CREATE_PETS_NAME_SECTION_INDEX);
+        db.execSQL(PetBackfillRunner.SQL_CREATE_PENDING_BACKFILLS_TABLE);
+        db.execSQL(SQL_CREATE_MEDICAL_TABLE);
+        db.execSQL(SQL_CREATE_MEDICAL_PET_INDEX);
+        db.execSQL(SQL_CREATE_PETS_ARCHIVE_TABLE);
+        db.execSQL(SQL_CREATE_MEDICAL_ARCHIVE_TABLE);
+        db.execSQL(SQL_CREATE_MEDICAL_ARCHIVE_PET_INDEX);
+        if (!createKennelIndex(db)) {
+            db.execSQL(SQL_CREATE_PETS_KENNEL_INDEX);
+        }
+        createSectionCounts(db);
+        createViews(db, false);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. The schema steps are listed in
+     * {@link PetMigrations}; their data backfills run later through {@link PetBackfillRunner}.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        PetMigrations.upgrade(db, oldVersion, newVersion);
+    }
+
+    /*
+    * Creates the kennel R*Tree and the triggers that keep it in step with the pets table. It
+    * starts out empty, as the kennel columns are only ever added together with it. The R*Tree
+    * module is optional in SQLite; without it this returns false and the caller indexes the
+    * pets table with SQL_CREATE_PETS_KENNEL_INDEX instead, see hasKennelRtree().
+    * */
+    static boolean createKennelIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + KENNEL_RTREE_TABLE + " USING rtree(id, " +
+                    "min_building, max_building, min_x, max_x, min_y, max_y);");
+        } catch (SQLiteException e) {
+            Log.w(TAG, "R*Tree not available, indexing kennels with a B-tree", e);
+            return false;
+        }
+
+        // Pets with all three kennel columns set have an entry, the others have none
+        String hasKennel = "NEW." + PetEntry.COLUMN_PET_KENNEL_BUILDING + " IS NOT NULL AND NEW." +
+                PetEntry.COLUMN_PET_KENNEL_X + " IS NOT NULL AND NEW." +
+                PetEntry.COLUMN_PET_KENNEL_Y + " IS NOT NULL";
+        String insertKennel = "INSERT INTO " + KENNEL_RTREE_TABLE + " SELECT NEW." +
+                PetEntry._ID + ", NEW." + PetEntry.COLUMN_PET_KENNEL_BUILDING + ", NEW." +
+                PetEntry.COLUMN_PET_KENNEL_BUILDING + ", NEW." + PetEntry.COLUMN_PET_KENNEL_X +
+                ", NEW." + PetEntry.COLUMN_PET_KENNEL_X + ", NEW." + PetEntry.COLUMN_PET_KENNEL_Y +
+                ", NEW." + PetEntry.COLUMN_PET_KENNEL_Y + " WHERE " + hasKennel + ";";
+        String deleteKennel = "DELETE FROM " + KENNEL_RTREE_TABLE + " WHERE id = OLD." +
+                PetEntry._ID + ";";
+
+        db.execSQL("CREATE TRIGGER pets_kennel_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + insertKennel + " END;");
+        db.execSQL("CREATE TRIGGER pets_kennel_update AFTER UPDATE OF " +
+                PetEntry.COLUMN_PET_KENNEL_BUILDING + ", " + PetEntry.COLUMN_PET_KENNEL_X + ", " +
+                PetEntry.COLUMN_PET_KENNEL_Y + " ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + deleteKennel + " " + insertKennel + " END;");
+        db.execSQL("CREATE TRIGGER pets_kennel_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + deleteKennel + " END;");
+        return true;
+    }
+
+    /*
+    * Creates the section counts table and the triggers that keep it up to date as pets are
+    * added, renamed and removed. It starts out empty, as the name section column is only ever
+    * added together with it; pets are counted as their section is filled in. Sections that
+    * become empty keep their row with a count of 0.
+    * */
+    static void createSectionCounts(SQLiteDatabase db) {
+        String section = SectionEntry.COLUMN_SECTION_NAME;
+        String count = SectionEntry.COLUMN_SECTION_PET_COUNT;
+        db.execSQL("CREATE TABLE " + SectionEntry.TABLE_NAME + " (" +
+                section + " TEXT PRIMARY KEY, " +
+                count + " INTEGER NOT NULL);");
+
+        String addNew = "INSERT OR IGNORE INTO " + SectionEntry.TABLE_NAME + " SELECT NEW." +
+                PetEntry.COLUMN_PET_NAME_SECTION + ", 0 WHERE NEW." +
+                PetEntry.COLUMN_PET_NAME_SECTION + " IS NOT NULL; UPDATE " +
+                SectionEntry.TABLE_NAME + " SET " + count + " = " + count + " + 1 WHERE " +
+                section + " = NEW." + PetEntry.COLUMN_PET_NAME_SECTION + ";";
+        String removeOld = "UPDATE " + SectionEntry.TABLE_NAME + " SET " + count + " = " +
+                count + " - 1 WHERE " + section + " = OLD." + PetEntry.COLUMN_PET_NAME_SECTION +
+                ";";
+
+        db.execSQL("CREATE TRIGGER pets_section_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + addNew + " END;");
+        db.execSQL("CREATE TRIGGER pets_section_update AFTER UPDATE OF " +
+                PetEntry.COLUMN_PET_NAME_SECTION + " ON " + PetEntry.TABLE_NAME + " WHEN OLD." +
+                PetEntry.COLUMN_PET_NAME_SECTION + " IS NOT NEW." +
+                PetEntry.COLUMN_PET_NAME_SECTION + " BEGIN " + removeOld + " " + addNew +
+                " END;");
+        db.execSQL("CREATE TRIGGER pets_section_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + removeOld + " END;");
+    }
+
+    /*
+    * Returns whether the kennels are indexed by the R*Tree, or by the fallback B-tree index.
+    * */
+    static boolean hasKennelRtree(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE " +
+                "type = 'table' AND name = ?", new String[] { KENNEL_RTREE_TABLE }) > 0;
+    }
+
+    /*
+    * Drops and creates all views with their current definition. Views hold no data, so
+    * PetMigrations recreates them after every upgrade instead of each step altering them.
+    *
+    * withLegacyBreeds is true while pets from before version 2 may still have their breed in
+    * the old free text column, which only databases created before version 2 have. The pet
+    * details then fall back to that text for pets whose breed hasn't been moved yet.
+    * */
+    static void recreateViews(SQLiteDatabase db, boolean withLegacyBreeds) {
+        db.execSQL("DROP VIEW IF EXISTS " + PetEntry.HISTORY_VIEW_NAME + ";");
+        db.execSQL("DROP VIEW IF EXISTS " + PetEntry.VIEW_NAME + ";");
+        createViews(db, withLegacyBreeds);
+    }
+
+    private static void createViews(SQLiteDatabase db, boolean withLegacyBreeds) {
+        // The pet details view exposes the breed name as a plain pets column. A LEFT JOIN keeps
+        // pets without a breed, and a "breed = ?" filter on the view can still be answered from
+        // the breeds name index followed by pets_breed_id_index, except while the legacy breeds
+        // are being moved.
+        String petColumns = selectPetColumns("p", "b");
+        if (withLegacyBreeds) {
+            petColumns = petColumns.replace("b." + BreedEntry.COLUMN_BREED_NAME + " AS ",
+                    "ifnull(b." + BreedEntry.COLUMN_BREED_NAME + ", p." +
+                            PetEntry.COLUMN_PET_BREED + ") AS ");
+        }
+        db.execSQL("CREATE VIEW " + PetEntry.VIEW_NAME + " AS SELECT " +
+                petColumns +
+                " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BreedEntry.TABLE_NAME +
+                " b ON p." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID + ";");
+
+        // The history view adds the archived pets after the current ones
+        db.execSQL("CREATE VIEW " + PetEntry.HISTORY_VIEW_NAME + " AS SELECT " +
+                petColumns + ", 0 AS " + PetEntry.COLUMN_PET_ARCHIVED +
+                " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BreedEntry.TABLE_NAME +
+                " b ON p." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID +
+                " UNION ALL SELECT " +
+                selectPetColumns("a", "b") + ", 1 AS " + PetEntry.COLUMN_PET_ARCHIVED +
+                " FROM " + PetEntry.ARCHIVE_TABLE_NAME + " a LEFT JOIN " + BreedEntry.TABLE_NAME +
+                " b ON a." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID + ";");
+    }
 
+    // Returns the select list of a pets view: the columns of PET_TABLE_COLUMNS from the pets
+    // table alias, with the breed name from the breeds table alias
+    private static String selectPetColumns(String petAlias, String breedAlias) {
+        StringBuilder columns = new StringBuilder();
+        for (String column : PET_TABLE_COLUMNS) {
+            columns.append(petAlias).append('.').append(column)
+                    .append(" AS ").append(column).append(", ");
+        }
+        columns.append(breedAlias).append('.').append(BreedEntry.COLUMN_BREED_NAME)
+                .append(" AS ").append(PetEntry.COLUMN_PET_BREED);
+        return columns.toString();
     }
 }
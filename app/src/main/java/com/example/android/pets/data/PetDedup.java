@@ -0,0 +1,315 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Duplicate intake detection.
+ *
+ * Every pet gets a blocking key made of the Soundex code of its name and its normalized breed,
+ * kept in the indexed {@link PetEntry#COLUMN_PET_DEDUP_KEY} column. Likely duplicates of a pet
+ * are the pets with the same key, found with one index lookup, whose names are close by
+ * Jaro-Winkler similarity. Pets are never compared across blocks, so the cost of a check
+ * depends on the size of one block, not of the table.
+ */
+final class PetDedup {
+
+    /** Lowest name similarity, from 0 to 1, at which two pets are reported as duplicates */
+    static final float DUPLICATE_SCORE_THRESHOLD = 0.85f;
+
+    // Soundex digit of each letter from 'a' to 'z', '0' for letters that aren't coded
+    private static final String SOUNDEX_CODES = "01230120022455012623010202";
+
+    // Columns of the pets table read to score candidates
+    private static final String[] CANDIDATE_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_GENDER};
+
+    /*
+    * Backfill that fills in the key of every pet written before the column existed. The breed
+    * name is read through the breeds table, so it's a join rather than the pet details view,
+    * which doesn't expose the key.
+    * */
+    static final PetBackfill BACKFILL = new PetBackfill("dedup_keys") {
+        @Override
+        int runBatch(SQLiteDatabase db, int batchSize) {
+            Cursor cursor = db.rawQuery("SELECT p." + PetEntry._ID + ", p." +
+                    PetEntry.COLUMN_PET_NAME + ", b." + BreedEntry.COLUMN_BREED_NAME +
+                    " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BreedEntry.TABLE_NAME +
+                    " b ON p." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID +
+                    " WHERE p." + PetEntry.COLUMN_PET_DEDUP_KEY + " IS NULL LIMIT " + batchSize,
+                    null);
+            try {
+                return updateKeys(db, cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+    };
+
+    private PetDedup() {
+    }
+
+    /**
+     * Returns the blocking key of a pet with the given name and breed, either of which may be
+     * null.
+     */
+    static String makeKey(String name, String breed) {
+        return soundex(normalize(name)) + '|' + normalize(breed);
+    }
+
+    /**
+     * Recomputes the key of the pets in the given cursor, which holds their _ID, name and
+     * breed name in its first three columns. Returns the number of pets updated.
+     */
+    static int updateKeys(SQLiteDatabase db, Cursor cursor) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                " SET " + PetEntry.COLUMN_PET_DEDUP_KEY + " = ? WHERE " + PetEntry._ID + " = ?");
+        try {
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                update.bindString(1, makeKey(cursor.getString(1), cursor.getString(2)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+                rows++;
+            }
+            return rows;
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Finds the pets that are likely duplicates of a pet with the given name, breed and gender.
+     * The best match comes first.
+     *
+     * @param excludeId _ID of a pet to leave out, e.g. the pet being edited, or -1
+     */
+    static List<Match> findDuplicates(SQLiteDatabase db, String name, String breed, int gender,
+                                      long excludeId) {
+        List<Match> matches = new ArrayList<Match>();
+        String normalizedName = normalize(name);
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, CANDIDATE_COLUMNS,
+                PetEntry.COLUMN_PET_DEDUP_KEY + " = ?", new String[] { makeKey(name, breed) },
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (id == excludeId || isGenderConflict(gender, cursor.getInt(2))) {
+                    continue;
+                }
+                float score = score(normalizedName, normalize(cursor.getString(1)));
+                if (score >= DUPLICATE_SCORE_THRESHOLD) {
+                    matches.add(new Match(excludeId, id, cursor.getString(1), score));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        sortByScore(matches);
+        return matches;
+    }
+
+    /**
+     * Returns up to {@code maxPairs} pairs of existing pets that are likely duplicates of each
+     * other. Only blocks with more than one pet are read, in key order from the key index.
+     */
+    static List<Match> findDuplicatePairs(SQLiteDatabase db, int maxPairs) {
+        List<Match> pairs = new ArrayList<Match>();
+        Cursor cursor = db.rawQuery("SELECT " + PetEntry.COLUMN_PET_DEDUP_KEY + ", " +
+                PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", " +
+                PetEntry.COLUMN_PET_GENDER + " FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                PetEntry.COLUMN_PET_DEDUP_KEY + " IN (SELECT " + PetEntry.COLUMN_PET_DEDUP_KEY +
+                " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_DEDUP_KEY +
+                " IS NOT NULL GROUP BY " + PetEntry.COLUMN_PET_DEDUP_KEY +
+                " HAVING count(*) > 1) ORDER BY " + PetEntry.COLUMN_PET_DEDUP_KEY, null);
+        try {
+            // Pets of the current block
+            List<Long> ids = new ArrayList<Long>();
+            List<String> normalizedNames = new ArrayList<String>();
+            List<Integer> genders = new ArrayList<Integer>();
+            String blockKey = null;
+
+            while (pairs.size() < maxPairs && cursor.moveToNext()) {
+                String key = cursor.getString(0);
+                if (!key.equals(blockKey)) {
+                    blockKey = key;
+                    ids.clear();
+                    normalizedNames.clear();
+                    genders.clear();
+                }
+                long id = cursor.getLong(1);
+                String name = cursor.getString(2);
+                String normalizedName = normalize(name);
+                int gender = cursor.getInt(3);
+
+                // Compare the pet with the ones before it in its block
+                for (int i = 0; i < ids.size() && pairs.size() < maxPairs; i++) {
+                    if (isGenderConflict(gender, genders.get(i))) {
+                        continue;
+                    }
+                    float score = score(normalizedNames.get(i), normalizedName);
+                    if (score >= DUPLICATE_SCORE_THRESHOLD) {
+                        pairs.add(new Match(ids.get(i), id, name, score));
+                    }
+                }
+                ids.add(id);
+                normalizedNames.add(normalizedName);
+                genders.add(gender);
+            }
+        } finally {
+            cursor.close();
+        }
+        sortByScore(pairs);
+        return pairs;
+    }
+
+    // Two pets whose gender is known and different can't be the same animal
+    private static boolean isGenderConflict(int gender, int otherGender) {
+        return gender != PetEntry.GENDER_UNKNOWN && otherGender != PetEntry.GENDER_UNKNOWN
+                && gender != otherGender;
+    }
+
+    // Sorts the given matches by descending score
+    private static void sortByScore(List<Match> matches) {
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return Float.compare(b.mScore, a.mScore);
+            }
+        });
+    }
+
+    // Returns the lower case letters and digits of the given text, "" for null
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder normalized = new StringBuilder(text.length());
+        String lowerCase = text.toLowerCase(Locale.US);
+        for (int i = 0; i < lowerCase.length(); i++) {
+            char c = lowerCase.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    /*
+    * Returns the American Soundex code of the given normalized name, e.g. "r163" for "robert"
+    * and "rupert". Names without letters are returned unchanged.
+    * */
+    static String soundex(String name) {
+        StringBuilder code = new StringBuilder(4);
+        char previousDigit = 0;
+        for (int i = 0; i < name.length() && code.length() < 4; i++) {
+            char c = name.charAt(i);
+            if (c < 'a' || c > 'z') {
+                continue;
+            }
+            char digit = SOUNDEX_CODES.charAt(c - 'a');
+            if (code.length() == 0) {
+                code.append(c);
+            } else if (digit != '0' && digit != previousDigit) {
+                code.append(digit);
+            }
+            // 'h' and 'w' don't separate letters with the same code, vowels do
+            if (c != 'h' && c != 'w') {
+                previousDigit = digit;
+            }
+        }
+        if (code.length() == 0) {
+            return name;
+        }
+        while (code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+
+    /*
+    * Returns the Jaro-Winkler similarity of the two normalized names, from 0 for nothing in
+    * common to 1 for equal names.
+    * */
+    static float score(String a, String b) {
+        if (a.equals(b)) {
+            return 1f;
+        }
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0f;
+        }
+
+        // Count the characters that match within the window, in order
+        int window = Math.max(0, Math.max(a.length(), b.length()) / 2 - 1);
+        boolean[] aMatched = new boolean[a.length()];
+        boolean[] bMatched = new boolean[b.length()];
+        int matches = 0;
+        for (int i = 0; i < a.length(); i++) {
+            int end = Math.min(b.length(), i + window + 1);
+            for (int j = Math.max(0, i - window); j < end; j++) {
+                if (!bMatched[j] && a.charAt(i) == b.charAt(j)) {
+                    aMatched[i] = true;
+                    bMatched[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return 0f;
+        }
+
+        // Count the matched characters that are out of order
+        int transpositions = 0;
+        for (int i = 0, j = 0; i < a.length(); i++) {
+            if (!aMatched[i]) {
+                continue;
+            }
+            while (!bMatched[j]) {
+                j++;
+            }
+            if (a.charAt(i) != b.charAt(j)) {
+                transpositions++;
+            }
+            j++;
+        }
+
+        float jaro = ((float) matches / a.length() + (float) matches / b.length()
+                + (matches - transpositions / 2f) / matches) / 3f;
+
+        // Boost names that share a prefix of up to four characters
+        int prefix = 0;
+        while (prefix < 4 && prefix < a.length() && prefix < b.length()
+                && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        return jaro + prefix * 0.1f * (1f - jaro);
+    }
+
+    /** A likely duplicate: the pet {@link #mId} matches the pet {@link #mOtherId} */
+    static final class Match {
+        final long mOtherId;
+        final long mId;
+        final String mName;
+        final float mScore;
+
+        Match(long otherId, long id, String name, float score) {
+            mOtherId = otherId;
+            mId = id;
+            mName = name;
+            mScore = score;
+        }
+    }
+}
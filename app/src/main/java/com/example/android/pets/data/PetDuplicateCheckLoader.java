@@ -0,0 +1,70 @@
+package com.example.android.pets.data;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link AsyncTaskLoader} that asks the provider for the existing pet most likely to be the
+ * same animal as a new one, see {@link PetContract#METHOD_FIND_DUPLICATES}. The result is the
+ * name of that pet, or null if there is none.
+ *
+ * The loader outlives a configuration change, so the answer reaches the activity that is
+ * shown once it is ready. It answers a single save and doesn't reload when pets change.
+ */
+public class PetDuplicateCheckLoader extends AsyncTaskLoader<String> {
+
+    // Name, breed and gender of the new pet, as METHOD_FIND_DUPLICATES takes them
+    private final Bundle mRequest;
+    private String mDuplicateName;
+    private boolean mLoaded;
+
+    public PetDuplicateCheckLoader(Context context, Bundle request) {
+        super(context);
+        mRequest = request;
+    }
+
+    @Override
+    public String loadInBackground() {
+        Bundle result = getContext().getContentResolver().call(PetEntry.CONTENT_URI,
+                PetContract.METHOD_FIND_DUPLICATES, null, mRequest);
+        String[] names = result == null ? null : result.getStringArray(PetEntry.COLUMN_PET_NAME);
+        return names == null || names.length == 0 ? null : names[0];
+    }
+
+    @Override
+    public void deliverResult(String duplicateName) {
+        if (isReset()) {
+            return;
+        }
+        mDuplicateName = duplicateName;
+        mLoaded = true;
+        if (isStarted()) {
+            super.deliverResult(duplicateName);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mLoaded) {
+            deliverResult(mDuplicateName);
+        } else {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mDuplicateName = null;
+        mLoaded = false;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Backfill that builds an index on a table that may already hold many rows, scheduled by the
+ * {@link PetMigration} that needs it. Each index is its own backfill, so each build is run,
+ * resumed and timed on its own.
+ *
+ * CREATE INDEX can't be split into batches, and SQLite holds the write lock for the whole
+ * statement. Readers go on from the write-ahead log, but provider writes wait until the index
+ * is built, which on a table of millions of pets takes seconds. That is longer than the few
+ * hundred milliseconds a migration may otherwise block the provider, and it is logged as a
+ * warning with the time taken whenever it happens. If the process dies during the build, the
+ * statement rolls back and the build starts over on the next run.
+ */
+class PetIndexBackfill extends PetBackfill {
+
+    private static final String LOG_TAG = PetIndexBackfill.class.getSimpleName();
+
+    // Longest a migration is meant to keep provider writes waiting
+    private static final long MAX_WRITE_BLOCK_MILLIS = 300;
+
+    private final String mIndexName;
+    private final String mCreateIndexSql;
+
+    /**
+     * @param indexName      Name of the index, also the name the backfill is scheduled under
+     * @param createIndexSql CREATE INDEX statement of the index
+     */
+    PetIndexBackfill(String indexName, String createIndexSql) {
+        super(indexName);
+        mIndexName = indexName;
+        mCreateIndexSql = createIndexSql;
+    }
+
+    /**
+     * Returns whether the index should be built, false once it exists. Overridden by indexes
+     * that are only needed in some databases.
+     */
+    boolean isNeeded(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE " +
+                "type = 'index' AND name = ?", new String[] { mIndexName }) == 0;
+    }
+
+    // The first batch builds the index, the next one finds it exists
+    @Override
+    int runBatch(SQLiteDatabase db, int batchSize) {
+        if (!isNeeded(db)) {
+            return 0;
+        }
+        long startMillis = SystemClock.elapsedRealtime();
+        db.execSQL(mCreateIndexSql);
+        long millis = SystemClock.elapsedRealtime() - startMillis;
+        if (millis > MAX_WRITE_BLOCK_MILLIS) {
+            Log.w(LOG_TAG, "Building " + mIndexName + " kept provider writes waiting for "
+                    + millis + " ms, over the " + MAX_WRITE_BLOCK_MILLIS + " ms budget");
+        } else {
+            Log.d(LOG_TAG, "Built " + mIndexName + " in " + millis + " ms");
+        }
+        return 1;
+    }
+}
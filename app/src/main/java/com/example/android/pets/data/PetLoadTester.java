@@ -0,0 +1,228 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fires concurrent queries at a {@link PetProvider}, to see how its read path holds up as more
+ * loaders, widgets and sync jobs query at once.
+ *
+ * Each concurrency level runs the same number of queries spread over that many threads, all
+ * started together, and reports the throughput and the latency percentiles. Most queries read
+ * a single pet by ID, as the editor does, and every SUMMARY_QUERY_INTERVAL-th one reads the
+ * whole catalog summary, as the catalog loader does. They run against a backup of the database
+ * on a provider of its own with the query cache off, so every query reaches SQLite and the app
+ * running next to a load test isn't affected. Load tests run one at a time since they share
+ * that copy.
+ */
+final class PetLoadTester {
+
+    private static final String LOG_TAG = PetLoadTester.class.getSimpleName();
+
+    /** Name, in the databases directory, of the database a load test runs against */
+    static final String LOAD_TEST_DATABASE_NAME = "shelter-load-test.db";
+
+    /** Concurrency levels run when the caller doesn't give any */
+    static final int[] DEFAULT_CONCURRENCY_LEVELS = {1, 2, 4, 8, 16};
+    /** Queries run at each level when the caller doesn't say */
+    static final int DEFAULT_QUERIES_PER_LEVEL = 2000;
+
+    // One query in this many reads the catalog summary, the others a single pet
+    private static final int SUMMARY_QUERY_INTERVAL = 20;
+
+    // Columns the catalog loader reads from the summary
+    private static final String[] SUMMARY_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_NEXT_MEDICAL_DUE_DATE};
+
+    private PetLoadTester() {
+    }
+
+    /** Outcome of one concurrency level */
+    static final class Report {
+        final int mThreads;
+        final int mQueries;
+        // Queries that threw
+        final int mFailures;
+        final long mMillis;
+        // Latencies of the queries that succeeded, in microseconds, at
+        // PetTraceReplayer.PERCENTILES
+        final long[] mLatencyMicros;
+
+        Report(int threads, int queries, int failures, long millis, long[] latencyMicros) {
+            mThreads = threads;
+            mQueries = queries;
+            mFailures = failures;
+            mMillis = millis;
+            mLatencyMicros = latencyMicros;
+        }
+
+        long getQueriesPerSecond() {
+            return mQueries * 1000L / Math.max(1, mMillis);
+        }
+
+        long getP99LatencyMicros() {
+            return mLatencyMicros[2];
+        }
+    }
+
+    /**
+     * Runs a load test on a backup of the given live database.
+     *
+     * @param levels          numbers of concurrent threads to run, each at least 1
+     * @param queriesPerLevel number of queries each level runs, at least 1
+     * @return a report per level, in the order of the levels
+     */
+    static synchronized Report[] run(Context context, SQLiteDatabase db, int[] levels,
+                                     int queriesPerLevel) throws IOException {
+        for (int threads : levels) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Load test requires at least one thread");
+            }
+        }
+        if (queriesPerLevel < 1) {
+            throw new IllegalArgumentException("Load test requires at least one query");
+        }
+
+        context.deleteDatabase(LOAD_TEST_DATABASE_NAME);
+        PetBackup.backup(db, context.getDatabasePath(LOAD_TEST_DATABASE_NAME));
+        PetProvider provider = new PetProvider(LOAD_TEST_DATABASE_NAME, false);
+        provider.attachInfo(context, null);
+        try {
+            // Opening the copy isn't part of the load test
+            provider.awaitWarmUp();
+            long[] ids = readPetIds(provider);
+            Report[] reports = new Report[levels.length];
+            for (int i = 0; i < levels.length; i++) {
+                reports[i] = runLevel(provider, ids, levels[i], queriesPerLevel);
+                Log.d(LOG_TAG, reports[i].mQueries + " queries on " + reports[i].mThreads
+                        + " threads in " + reports[i].mMillis + " ms ("
+                        + reports[i].getQueriesPerSecond() + " queries/s), "
+                        + reports[i].mFailures + " failed, latency "
+                        + PetTraceReplayer.describe(reports[i].mLatencyMicros));
+            }
+            return reports;
+        } finally {
+            provider.shutdown();
+            context.deleteDatabase(LOAD_TEST_DATABASE_NAME);
+        }
+    }
+
+    // Returns the _ID of every pet, for the single pet queries to pick from
+    private static long[] readPetIds(PetProvider provider) {
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int row = 0;
+            while (cursor.moveToNext()) {
+                ids[row++] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+    * Runs the given number of queries on the given number of threads. The threads wait for each
+    * other before the first query, so the level starts at full concurrency.
+    * */
+    private static Report runLevel(final PetProvider provider, final long[] ids, int threads,
+                                   final int queries) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        // Latency of each query in microseconds, -1 if it failed. Written by the workers and
+        // read once they are joined.
+        final long[] latencyMicros = new long[queries];
+        final CountDownLatch started = new CountDownLatch(threads);
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        started.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int index;
+                    while ((index = next.getAndIncrement()) < queries) {
+                        long startNanos = System.nanoTime();
+                        try {
+                            Cursor cursor = query(provider, ids, index, random);
+                            try {
+                                // Counting the rows runs the query
+                                cursor.getCount();
+                            } finally {
+                                cursor.close();
+                            }
+                            latencyMicros[index] = (System.nanoTime() - startNanos) / 1000;
+                        } catch (RuntimeException e) {
+                            Log.w(LOG_TAG, "Load test query failed", e);
+                            latencyMicros[index] = -1;
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }, "PetLoadTest-" + i);
+            workers[i].start();
+        }
+        long startNanos = System.nanoTime();
+        try {
+            started.await();
+            startNanos = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            // Let the workers finish the queries they are running and stop
+            next.set(queries);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Load test interrupted");
+        }
+        long millis = (System.nanoTime() - startNanos) / 1000000;
+
+        List<Long> latencies = new ArrayList<Long>(queries);
+        for (long latency : latencyMicros) {
+            if (latency >= 0) {
+                latencies.add(latency);
+            }
+        }
+        return new Report(threads, queries, failures.get(), millis,
+                PetTraceReplayer.percentiles(latencies));
+    }
+
+    // Runs the query of the given index: the catalog summary, or a random pet
+    private static Cursor query(PetProvider provider, long[] ids, int index, Random random) {
+        if (ids.length == 0 || index % SUMMARY_QUERY_INTERVAL == 0) {
+            return provider.query(PetEntry.SUMMARY_URI, SUMMARY_PROJECTION, null, null,
+                    PetEntry.SECTION_SORT_ORDER);
+        }
+        Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                ids[random.nextInt(ids.length)]);
+        return provider.query(petUri, null, null, null, null);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the shelter.db schema history, upgrading the database from the previous version
+ * to {@link #getToVersion()}.
+ *
+ * {@link #migrate(SQLiteDatabase)} runs inside the upgrade transaction while the database is
+ * being opened, and every provider call waits for it, so it should only make changes that don't
+ * depend on the number of rows: creating tables, triggers and views, adding columns, and
+ * indexing tables the step creates. Work that touches every row belongs in the
+ * {@link PetBackfill}s returned by {@link #getBackfills()}, which run in small batches after
+ * the database is open. That includes indexes on existing tables, which are built by a
+ * {@link PetIndexBackfill}.
+ */
+abstract class PetMigration {
+
+    private static final PetBackfill[] NO_BACKFILLS = new PetBackfill[0];
+
+    private final int mToVersion;
+
+    PetMigration(int toVersion) {
+        mToVersion = toVersion;
+    }
+
+    /** Returns the database version this step upgrades to */
+    int getToVersion() {
+        return mToVersion;
+    }
+
+    /** Changes the schema from the previous version to {@link #getToVersion()} */
+    abstract void migrate(SQLiteDatabase db);
+
+    /** Returns the backfills to schedule after this step, in the order they should run */
+    PetBackfill[] getBackfills() {
+        return NO_BACKFILLS;
+    }
+}
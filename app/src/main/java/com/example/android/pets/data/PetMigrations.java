@@ -0,0 +1,320 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.example.android.pets.data.PetContract.BreedEntry;
+import static com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Ordered list of the {@link PetMigration} steps that bring an existing shelter.db up to
+ * {@link #LATEST_VERSION}. To change the schema, add a step at the end of {@link #MIGRATIONS}
+ * and make the matching change in {@link PetDbHelper#onCreate(SQLiteDatabase)}.
+ */
+final class PetMigrations {
+
+    // Index builds on the pets table, see PetIndexBackfill
+    private static final PetBackfill BREED_INDEX_BACKFILL = new PetIndexBackfill(
+            PetDbHelper.PETS_BREED_INDEX, PetDbHelper.SQL_CREATE_PETS_BREED_INDEX);
+    private static final PetBackfill STATUS_INDEX_BACKFILL = new PetIndexBackfill(
+            PetDbHelper.PETS_STATUS_INDEX, PetDbHelper.SQL_CREATE_PETS_STATUS_INDEX);
+    private static final PetBackfill DEDUP_KEY_INDEX_BACKFILL = new PetIndexBackfill(
+            PetDbHelper.PETS_DEDUP_KEY_INDEX, PetDbHelper.SQL_CREATE_PETS_DEDUP_KEY_INDEX);
+    private static final PetBackfill NAME_SECTION_INDEX_BACKFILL = new PetIndexBackfill(
+            PetDbHelper.PETS_NAME_SECTION_INDEX, PetDbHelper.SQL_CREATE_PETS_NAME_SECTION_INDEX);
+    // The kennel fallback index is only built where SQLite has no R*Tree module
+    private static final PetBackfill KENNEL_INDEX_BACKFILL = new PetIndexBackfill(
+            PetDbHelper.PETS_KENNEL_INDEX, PetDbHelper.SQL_CREATE_PETS_KENNEL_INDEX) {
+        @Override
+        boolean isNeeded(SQLiteDatabase db) {
+            return !PetDbHelper.hasKennelRtree(db) && super.isNeeded(db);
+        }
+    };
+
+    /*
+    * Backfill that moves the free text breed of every pet from before version 2 into the
+    * breeds table, one range of _IDs per batch. The old breed column can't be dropped in
+    * SQLite, so it is cleared once its value has been copied. Until then the details view
+    * shows the old text, and once nothing is left the views are recreated without it.
+    * */
+    private static final PetBackfill BREED_BACKFILL = new PetBackfill("breeds") {
+        // Pets below this _ID have been moved. Only kept for the current run, since rows can
+        // come back with a restore.
+        private long mNextId;
+
+        @Override
+        void onStart(SQLiteDatabase db) {
+            mNextId = 0;
+        }
+
+        @Override
+        int runBatch(SQLiteDatabase db, int batchSize) {
+            // Continue from the first pet left, walking the primary key
+            Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[] { PetEntry._ID },
+                    PetEntry._ID + " >= ? AND " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL",
+                    new String[] { String.valueOf(mNextId) }, null, null, PetEntry._ID,
+                    "1");
+            long firstId;
+            try {
+                if (!cursor.moveToFirst()) {
+                    PetDbHelper.recreateViews(db, false);
+                    return 0;
+                }
+                firstId = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+            mNextId = firstId + batchSize;
+            Object[] range = { firstId, mNextId };
+            String inRange = " WHERE " + PetEntry._ID + " >= ? AND " + PetEntry._ID + " < ?" +
+                    " AND " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL";
+
+            // Add every distinct breed of the range once
+            db.execSQL("INSERT OR IGNORE INTO " + BreedEntry.TABLE_NAME +
+                    " (" + BreedEntry.COLUMN_BREED_NAME + ")" +
+                    " SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " +
+                    PetEntry.TABLE_NAME + inRange + " AND " + PetEntry.COLUMN_PET_BREED +
+                    " != '';", range);
+
+            // Point the pets at their breed row, unless a breed was set since the upgrade, and
+            // clear the old text value
+            SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                    " SET " + PetEntry.COLUMN_PET_BREED_ID + " = ifnull(" +
+                    PetEntry.COLUMN_PET_BREED_ID + ", (SELECT b." + BreedEntry._ID + " FROM " +
+                    BreedEntry.TABLE_NAME + " b WHERE b." + BreedEntry.COLUMN_BREED_NAME + " = " +
+                    PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_BREED + ")), " +
+                    PetEntry.COLUMN_PET_BREED + " = NULL" + inRange);
+            try {
+                update.bindLong(1, firstId);
+                update.bindLong(2, mNextId);
+                // A range may hold only a few pets left, it still counts as progress
+                return Math.max(1, update.executeUpdateDelete());
+            } finally {
+                update.close();
+            }
+        }
+    };
+
+    /*
+    * Version 2 moves the free text breed of every pet into the breeds table. The pets are
+    * moved by a backfill, after which the breed index is built.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_2 = new PetMigration(2) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL(PetDbHelper.SQL_CREATE_BREEDS_TABLE);
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_BREED_ID + " INTEGER REFERENCES " +
+                    BreedEntry.TABLE_NAME + " (" + BreedEntry._ID + ");");
+        }
+
+        @Override
+        PetBackfill[] getBackfills() {
+            return new PetBackfill[] { BREED_BACKFILL, BREED_INDEX_BACKFILL };
+        }
+    };
+
+    /*
+    * Version 3 adds the table that keeps track of backfills still to run, so that later
+    * steps can leave their per-row work to PetBackfillRunner.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_3 = new PetMigration(3) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL(PetBackfillRunner.SQL_CREATE_PENDING_BACKFILLS_TABLE);
+        }
+    };
+
+    /*
+    * Version 4 adds the medical records table.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_4 = new PetMigration(4) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL(PetDbHelper.SQL_CREATE_MEDICAL_TABLE);
+            db.execSQL(PetDbHelper.SQL_CREATE_MEDICAL_PET_INDEX);
+        }
+    };
+
+    /*
+    * Version 5 adds the adoption status of pets, and the archive tables that adopted and
+    * transferred pets are moved to. Existing pets are all available, which the column
+    * default gives them without touching any rows. The status index is built afterwards.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_5 = new PetMigration(5) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_STATUS + " INTEGER NOT NULL DEFAULT " +
+                    PetEntry.STATUS_AVAILABLE + ";");
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_STATUS_DATE + " INTEGER;");
+            db.execSQL(PetDbHelper.SQL_CREATE_PETS_ARCHIVE_TABLE);
+            db.execSQL(PetDbHelper.SQL_CREATE_MEDICAL_ARCHIVE_TABLE);
+            db.execSQL(PetDbHelper.SQL_CREATE_MEDICAL_ARCHIVE_PET_INDEX);
+        }
+
+        @Override
+        PetBackfill[] getBackfills() {
+            return new PetBackfill[] { STATUS_INDEX_BACKFILL };
+        }
+    };
+
+    /*
+    * Version 6 adds the duplicate detection key. Existing pets get theirs from a backfill,
+    * since the key is computed in Java, and the key index is built once they have it.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_6 = new PetMigration(6) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                    PetEntry.COLUMN_PET_DEDUP_KEY + " TEXT;");
+        }
+
+        @Override
+        PetBackfill[] getBackfills() {
+            return new PetBackfill[] { PetDedup.BACKFILL, DEDUP_KEY_INDEX_BACKFILL };
+        }
+    };
+
+    /*
+    * Version 7 adds the kennel location of pets, kept for archived pets too, and the spatial
+    * index over it. The new columns are empty, so the R*Tree starts out empty. Without the
+    * R*Tree module the fallback B-tree index is built afterwards.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_7 = new PetMigration(7) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            for (String table : new String[] { PetEntry.TABLE_NAME, PetEntry.ARCHIVE_TABLE_NAME }) {
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_KENNEL_BUILDING + " INTEGER;");
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_KENNEL_X + " REAL;");
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_KENNEL_Y + " REAL;");
+            }
+            PetDbHelper.createKennelIndex(db);
+        }
+
+        @Override
+        PetBackfill[] getBackfills() {
+            return new PetBackfill[] { KENNEL_INDEX_BACKFILL };
+        }
+    };
+
+    /*
+    * Backfill that fills in the alphabet section of every pet named before the column existed.
+    * The section counts triggers count each pet as its section is set.
+    * */
+    private static final PetBackfill NAME_SECTION_BACKFILL = new PetBackfill("name_sections") {
+        // The counts behind the fast scroll index grow as sections are set
+        @Override
+        boolean changesVisibleRows() {
+            return true;
+        }
+
+        @Override
+        int runBatch(SQLiteDatabase db, int batchSize) {
+            Cursor cursor = db.query(PetEntry.TABLE_NAME,
+                    new String[] { PetEntry._ID, PetEntry.COLUMN_PET_NAME },
+                    PetEntry.COLUMN_PET_NAME_SECTION + " IS NULL", null, null, null, null,
+                    String.valueOf(batchSize));
+            SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME +
+                    " SET " + PetEntry.COLUMN_PET_NAME_SECTION + " = ? WHERE " + PetEntry._ID +
+                    " = ?");
+            try {
+                int rows = 0;
+                while (cursor.moveToNext()) {
+                    update.bindString(1, PetEntry.getNameSection(cursor.getString(1)));
+                    update.bindLong(2, cursor.getLong(0));
+                    update.executeUpdateDelete();
+                    rows++;
+                }
+                return rows;
+            } finally {
+                update.close();
+                cursor.close();
+            }
+        }
+    };
+
+    /*
+    * Version 8 adds the alphabet section of each pet's name and the section counts table
+    * behind the catalog's fast scroll index. The sections are filled in by a backfill, and the
+    * index that sorts the catalog by them is built after that.
+    * */
+    private static final PetMigration MIGRATE_TO_VERSION_8 = new PetMigration(8) {
+        @Override
+        void migrate(SQLiteDatabase db) {
+            for (String table : new String[] { PetEntry.TABLE_NAME, PetEntry.ARCHIVE_TABLE_NAME }) {
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_NAME_SECTION + " TEXT;");
+            }
+            PetDbHelper.createSectionCounts(db);
+        }
+
+        @Override
+        PetBackfill[] getBackfills() {
+            return new PetBackfill[] { NAME_SECTION_BACKFILL, NAME_SECTION_INDEX_BACKFILL };
+        }
+    };
+
+    // All migration steps, ordered by the version they upgrade to
+    private static final PetMigration[] MIGRATIONS = {
+            MIGRATE_TO_VERSION_2,
+            MIGRATE_TO_VERSION_3,
+            MIGRATE_TO_VERSION_4,
+            MIGRATE_TO_VERSION_5,
+            MIGRATE_TO_VERSION_6,
+            MIGRATE_TO_VERSION_7,
+            MIGRATE_TO_VERSION_8,
+    };
+
+    /** Current version of the shelter.db schema */
+    static final int LATEST_VERSION = MIGRATIONS[MIGRATIONS.length - 1].getToVersion();
+
+    private PetMigrations() {
+    }
+
+    /**
+     * Runs every step after {@code oldVersion} up to {@code newVersion}, in order, schedules
+     * their backfills, and recreates the views. Called from {@link PetDbHelper#onUpgrade} inside
+     * the upgrade transaction. The backfills are scheduled once all steps have run, since the
+     * pending backfills table only exists from version 3 on.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        List<PetBackfill> backfills = new ArrayList<PetBackfill>();
+        for (PetMigration migration : MIGRATIONS) {
+            int toVersion = migration.getToVersion();
+            if (toVersion <= oldVersion || toVersion > newVersion) {
+                continue;
+            }
+            migration.migrate(db);
+            backfills.addAll(Arrays.asList(migration.getBackfills()));
+        }
+        for (PetBackfill backfill : backfills) {
+            PetBackfillRunner.schedule(db, backfill);
+        }
+        PetDbHelper.recreateViews(db,
+                PetBackfillRunner.isPending(db, BREED_BACKFILL.getName()));
+    }
+
+    /**
+     * Returns the backfill scheduled under the given name, or null if no step has one.
+     */
+    static PetBackfill findBackfill(String name) {
+        for (PetMigration migration : MIGRATIONS) {
+            for (PetBackfill backfill : migration.getBackfills()) {
+                if (backfill.getName().equals(name)) {
+                    return backfill;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,299 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.pets.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Debug build record of every query, call, insert, update and delete {@link PetProvider}
+ * serves, with its URI, projection and the number of rows it returned or touched.
+ *
+ * Operations are only kept while a {@link Flow} is open. A flow spans one user action, such as
+ * launching the catalog or saving a pet, and is checked against its {@link QueryBudget} when it
+ * finishes. Going over the budget is logged as an error in the app, and the flow tests fail on
+ * it, so a flow that starts doing more work than it declared is caught right away instead of
+ * slowly getting slower. The last finished flows are kept for the tests to look at. Release
+ * builds record nothing.
+ *
+ * A flow from {@link #beginFlow} only gets the operations run on a thread while it has
+ * {@link Flow#enter entered} it, so reloads that its own writes or the provider's background
+ * jobs trigger on other threads aren't charged to it. The work of a flow from
+ * {@link #beginAsyncFlow}, such as a loader's query, runs on threads the caller doesn't control,
+ * so it gets every operation of the process that no other flow entered, and going over its
+ * budget is logged as a warning only, since it may include work other threads triggered.
+ */
+public final class PetOperationLog {
+
+    private static final String LOG_TAG = PetOperationLog.class.getSimpleName();
+
+    /** Whether operations are recorded and budgets checked */
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    /** Kinds of provider operations */
+    public static final int TYPE_QUERY = 0;
+    public static final int TYPE_CALL = 1;
+    public static final int TYPE_INSERT = 2;
+    public static final int TYPE_UPDATE = 3;
+    public static final int TYPE_DELETE = 4;
+
+    private static final String[] TYPE_NAMES = {"query", "call", "insert", "update", "delete"};
+
+    // Operations recorded since the oldest open async flow began
+    private static final List<Operation> sOperations = new ArrayList<Operation>();
+    // Number of operations dropped from the front of sOperations, so flows can keep absolute
+    // positions
+    private static int sDropped;
+    private static int sOpenAsyncFlows;
+
+    // Flow the current thread entered, if any
+    private static final ThreadLocal<Flow> sCurrentFlow = new ThreadLocal<Flow>();
+
+    // Most recently finished flows, oldest first
+    private static final int FINISHED_FLOW_HISTORY = 32;
+    private static final List<Flow> sFinishedFlows = new ArrayList<Flow>();
+
+    private PetOperationLog() {
+    }
+
+    /**
+     * Records an operation to the flow the current thread entered, or else to the open async
+     * flows. Called by {@link PetProvider}.
+     *
+     * @param detail Projection of a query, or the method of a call, or null
+     */
+    static void record(int type, Uri uri, String[] detail, int rows) {
+        if (!ENABLED) {
+            return;
+        }
+        Flow flow = sCurrentFlow.get();
+        if (flow != null) {
+            synchronized (flow.mOperations) {
+                flow.mOperations.add(new Operation(type, uri, detail, rows));
+            }
+            return;
+        }
+        synchronized (sOperations) {
+            if (sOpenAsyncFlows > 0) {
+                sOperations.add(new Operation(type, uri, detail, rows));
+            }
+        }
+    }
+
+    // Returns the flow the current thread entered, or null
+    static Flow getCurrentFlow() {
+        return ENABLED ? sCurrentFlow.get() : null;
+    }
+
+    /**
+     * Returns the most recently finished flow of the given name, or null if none of the last
+     * ones has it.
+     */
+    public static Flow findFinishedFlow(String name) {
+        synchronized (sFinishedFlows) {
+            for (int i = sFinishedFlows.size() - 1; i >= 0; i--) {
+                if (sFinishedFlows.get(i).mName.equals(name)) {
+                    return sFinishedFlows.get(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Forgets the finished flows, e.g. between tests */
+    public static void clearFinishedFlows() {
+        synchronized (sFinishedFlows) {
+            sFinishedFlows.clear();
+        }
+    }
+
+    /**
+     * Starts recording the operations of the given user action, run on the threads that
+     * {@link Flow#enter enter} the flow. Every flow must be finished or cancelled.
+     */
+    public static Flow beginFlow(String name) {
+        return new Flow(name, false, 0);
+    }
+
+    /**
+     * Starts recording every operation of the process for the given user action, whose work
+     * runs on threads it can't enter, such as a loader's. Every flow must be finished or
+     * cancelled.
+     */
+    public static Flow beginAsyncFlow(String name) {
+        if (!ENABLED) {
+            return new Flow(name, true, 0);
+        }
+        synchronized (sOperations) {
+            sOpenAsyncFlows++;
+            return new Flow(name, true, sDropped + sOperations.size());
+        }
+    }
+
+    /** One provider operation */
+    public static final class Operation {
+        public final int mType;
+        public final Uri mUri;
+        public final String[] mDetail;
+        public final int mRows;
+
+        Operation(int type, Uri uri, String[] detail, int rows) {
+            mType = type;
+            mUri = uri;
+            mDetail = detail;
+            mRows = rows;
+        }
+
+        /** Returns whether the operation read from the database */
+        public boolean isRead() {
+            return mType == TYPE_QUERY || mType == TYPE_CALL;
+        }
+
+        @Override
+        public String toString() {
+            return TYPE_NAMES[mType] + " " + mUri
+                    + (mDetail == null ? "" : " " + Arrays.toString(mDetail))
+                    + " rows=" + mRows;
+        }
+    }
+
+    /**
+     * Operations of one user action, from {@link #beginFlow} or {@link #beginAsyncFlow} to
+     * {@link #finish}.
+     */
+    public static final class Flow {
+        private final String mName;
+        private final boolean mAsync;
+        // Position of the flow's first operation in sOperations, for an async flow
+        private final int mStart;
+        // Operations run on the threads that entered the flow
+        private final List<Operation> mOperations = new ArrayList<Operation>();
+        // Cursor tracker state when the flow began, for an async flow
+        private final long mCursorSequence;
+        private final int mLeakCount;
+        private boolean mFinished;
+        // Once finished, the operations of the flow and how it went over its budget, if it did
+        private List<Operation> mFinishedOperations = Collections.emptyList();
+        private String mOverrun;
+
+        private Flow(String name, boolean async, int start) {
+            mName = name;
+            mAsync = async;
+            mStart = start;
+            mCursorSequence = ENABLED ? CursorTracker.getSequence() : 0;
+            mLeakCount = ENABLED ? CursorTracker.getLeakCount() : 0;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Records the provider operations the current thread runs to this flow, until
+         * {@link #exit}. Operations of an async flow are recorded without entering it.
+         */
+        public void enter() {
+            if (ENABLED) {
+                sCurrentFlow.set(this);
+            }
+        }
+
+        /** Stops recording the operations of the current thread to this flow */
+        public void exit() {
+            if (ENABLED) {
+                sCurrentFlow.remove();
+            }
+        }
+
+        /**
+         * Stops recording and checks the operations of the flow against the given budget. An
+         * overrun is logged, as an error unless the flow is async.
+         *
+         * @return false if the flow went over its budget in a debug build
+         */
+        public boolean finish(QueryBudget budget) {
+            List<Operation> operations = close();
+            if (operations == null) {
+                return mOverrun == null;
+            }
+            List<String> openCursors;
+            int leakedCursors;
+            if (mAsync) {
+                openCursors = CursorTracker.describeOpenCursorsSince(mCursorSequence);
+                leakedCursors = CursorTracker.getLeakCount() - mLeakCount;
+            } else {
+                openCursors = CursorTracker.describeOpenCursorsOf(this);
+                leakedCursors = CursorTracker.getLeakCount(this);
+            }
+            Log.d(LOG_TAG, mName + ": " + operations.size() + " provider operations, "
+                    + openCursors.size() + " cursors left open, "
+                    + CursorTracker.getOpenWindowBytes() + " window bytes in use");
+            mOverrun = budget.check(mName, operations, openCursors, leakedCursors);
+            if (mOverrun != null && mAsync) {
+                Log.w(LOG_TAG, mOverrun);
+            } else if (mOverrun != null) {
+                Log.e(LOG_TAG, mOverrun);
+            }
+
+            synchronized (sFinishedFlows) {
+                if (sFinishedFlows.size() == FINISHED_FLOW_HISTORY) {
+                    sFinishedFlows.remove(0);
+                }
+                sFinishedFlows.add(this);
+            }
+            return mOverrun == null;
+        }
+
+        /** Returns the operations recorded to the flow, once it has finished */
+        public List<Operation> getOperations() {
+            return mFinishedOperations;
+        }
+
+        /**
+         * Returns how the flow went over its budget, listing its operations and open cursors,
+         * or null if it stayed within it or hasn't finished.
+         */
+        public String getOverrun() {
+            return mOverrun;
+        }
+
+        /**
+         * Stops recording without a check, e.g. when the activity goes away before the flow
+         * completed. Does nothing if the flow already finished.
+         */
+        public void cancel() {
+            close();
+        }
+
+        // Returns the operations of the flow, or null if it was already closed
+        private List<Operation> close() {
+            if (!ENABLED || mFinished) {
+                return null;
+            }
+            mFinished = true;
+
+            if (!mAsync) {
+                synchronized (mOperations) {
+                    mFinishedOperations =
+                            Collections.unmodifiableList(new ArrayList<Operation>(mOperations));
+                }
+                return mFinishedOperations;
+            }
+            synchronized (sOperations) {
+                mFinishedOperations = Collections.unmodifiableList(new ArrayList<Operation>(
+                        sOperations.subList(mStart - sDropped, sOperations.size())));
+                sOpenAsyncFlows--;
+                if (sOpenAsyncFlows == 0) {
+                    sDropped += sOperations.size();
+                    sOperations.clear();
+                }
+                return mFinishedOperations;
+            }
+        }
+    }
+}
@@ -5,13 +5,35 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.MedicalEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SectionEntry;
 
-import static com.example.android.pets.data.PetContract.PetEntry.isValidGender;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by namlu on 11-May-17.
@@ -29,6 +51,27 @@ public class PetProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PET_ID = 101;
 
+    /** URI matcher code for the content URI for the medical records of a single pet */
+    private static final int PET_MEDICAL = 102;
+
+    /** URI matcher code for the content URI for a single medical record of a pet */
+    private static final int PET_MEDICAL_ID = 103;
+
+    /** URI matcher code for the content URI for the pets joined with their medical status */
+    private static final int PETS_SUMMARY = 104;
+
+    /** URI matcher code for the content URI for the current and the archived pets */
+    private static final int PETS_HISTORY = 105;
+
+    /** URI matcher code for the content URI for the pets with a kennel in an area */
+    private static final int PETS_AREA = 106;
+
+    /** URI matcher code for the content URI for the number of pets in each alphabet section */
+    private static final int PETS_SECTIONS = 107;
+
+    /** URI matcher code for the content URI of the latest backup */
+    private static final int BACKUP = 108;
+
     /**
      * Creates a UriMatcher object. It's common to use NO_MATCH as the input for this case.
      * */
@@ -45,10 +88,143 @@ public class PetProvider extends ContentProvider {
 
         // This URI is used to access a single row of the pets table.
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+
+        // These URIs are used to access the medical records of a single pet, or a single one
+        // of those records.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_MEDICAL, PET_MEDICAL);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/#/" + PetContract.PATH_MEDICAL + "/#", PET_MEDICAL_ID);
+
+        // This URI is used to read all pets together with their medical status. "summary"
+        // isn't a number, so it doesn't collide with the single pet URI.
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SUMMARY, PETS_SUMMARY);
+
+        // This URI is used to read the archived pets along with the current ones
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_HISTORY, PETS_HISTORY);
+
+        // This URI is used to read the pets with a kennel in the area given by its parameters
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_AREA, PETS_AREA);
+
+        // This URI is used to read the section counts behind the catalog's fast scroll index
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SECTIONS, PETS_SECTIONS);
+
+        // This URI is used to read the latest backup file, or to write one to be restored
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_BACKUP, BACKUP);
     }
 
+    /*
+    * Pets with their medical status. The pending count and next due date of each pet are read
+    * from pet_medical_pet_index (pet_id, completed_date, due_date), so the whole summary is a
+    * single query instead of one medical query per pet.
+    * */
+    private static final String PET_SUMMARY_TABLES = "(SELECT d.*, " +
+            "(SELECT count(*) FROM " + MedicalEntry.TABLE_NAME + " m WHERE m." +
+            MedicalEntry.COLUMN_MEDICAL_PET_ID + " = d." + PetEntry._ID + " AND m." +
+            MedicalEntry.COLUMN_MEDICAL_COMPLETED_DATE + " IS NULL) AS " +
+            PetEntry.COLUMN_PENDING_MEDICAL_COUNT + ", " +
+            "(SELECT min(m." + MedicalEntry.COLUMN_MEDICAL_DUE_DATE + ") FROM " +
+            MedicalEntry.TABLE_NAME + " m WHERE m." + MedicalEntry.COLUMN_MEDICAL_PET_ID +
+            " = d." + PetEntry._ID + " AND m." + MedicalEntry.COLUMN_MEDICAL_COMPLETED_DATE +
+            " IS NULL) AS " + PetEntry.COLUMN_NEXT_MEDICAL_DUE_DATE +
+            " FROM " + PetEntry.VIEW_NAME + " d)";
+
+    /** Columns returned by a batch lookup that doesn't ask for specific ones */
+    private static final String[] BATCH_LOOKUP_COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    /** Most arguments bound in one IN (...) selection, below SQLite's default limit of 999 */
+    static final int MAX_IN_ARGUMENTS = 500;
+
+    /** Directory, below the app's files directory, of the recorded traces */
+    private static final String TRACE_DIRECTORY = "traces";
+    // Suffixes of the operations of a trace and of the database it started from
+    private static final String TRACE_SUFFIX = ".jsonl";
+    private static final String TRACE_START_STATE_SUFFIX = ".db";
+
+    /*
+    * Quiet period after the last write that changed pets before the kiosk snapshot is exported
+    * again, and the longest the export waits after the first one, so steady writes still reach
+    * the kiosks.
+    * */
+    private static final long KIOSK_EXPORT_DELAY_MILLIS = 2000;
+    private static final long KIOSK_EXPORT_MAX_DELAY_MILLIS = 10000;
+
+    /** Memory budget of the query result cache */
+    private static final int QUERY_CACHE_SIZE_BYTES = 1024 * 1024;
+
+    // Number of queries that reached SQLite (cache hits aren't counted), for instrumentation
+    private static final AtomicInteger sDatabaseQueryCount = new AtomicInteger();
+
     // Global variables
     private PetDbHelper mDbHelper;
+    private PetQueryCache mQueryCache;
+
+    // Released once the warm-up thread has opened and migrated the database
+    private final CountDownLatch mWarmUpLatch = new CountDownLatch(1);
+    // Time the provider was created, and whether the time to the first query was logged yet
+    private long mCreatedAtMillis;
+    private final AtomicBoolean mFirstQueryLogged = new AtomicBoolean();
+    // Whether the kennels have an R*Tree index, looked up on the first area query
+    private volatile Boolean mHasKennelRtree;
+
+    // Name of the database served, null for shelter.db
+    private final String mDatabaseName;
+    // Whether repeated queries are served from mQueryCache, off for a load test
+    private final boolean mCacheQueries;
+    // Trace the operations are recorded to, null while not recording
+    private volatile PetTraceRecorder mTraceRecorder;
+
+    // Runs the kiosk snapshot exports scheduled after writes, null for a trace replay
+    private Handler mKioskExportHandler;
+    // Uptime by which the scheduled export must run, 0 if none is scheduled. Guarded by
+    // mExportKioskSnapshot.
+    private long mKioskExportDeadline;
+
+    // Run by the background jobs after batches that changed rows readers see, throttled by
+    // PetBackfillRunner
+    private final Runnable mNotifyBatchCommitted = new Runnable() {
+        @Override
+        public void run() {
+            mQueryCache.invalidate();
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+        }
+    };
+
+    // Exports the kiosk snapshot on the export thread, once the writes have settled
+    private final Runnable mExportKioskSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (this) {
+                mKioskExportDeadline = 0;
+            }
+            exportKioskSnapshot();
+        }
+    };
+
+    public PetProvider() {
+        this(null);
+    }
+
+    // Serves the database of the given name instead of shelter.db, for a trace replay. The
+    // background jobs don't run on it, so the replay only does what the trace did.
+    PetProvider(String databaseName) {
+        this(databaseName, true);
+    }
+
+    // Serves the database of the given name, optionally without the query cache so every
+    // query reaches SQLite, for a load test
+    PetProvider(String databaseName, boolean cacheQueries) {
+        mDatabaseName = databaseName;
+        mCacheQueries = cacheQueries;
+    }
 
     /**
      * Initialize the provider and the database helper object.
@@ -58,10 +234,167 @@ public class PetProvider extends ContentProvider {
         // Create and initialize a PetDbHelper object to gain access to the pets database.
         // Make sure the variable is a global variable, so it can be referenced from other
         // ContentProvider methods.
-        mDbHelper = new PetDbHelper(getContext());
+        mDbHelper = mDatabaseName == null ? new PetDbHelper(getContext())
+                : new PetDbHelper(getContext(), mDatabaseName);
+        mQueryCache = new PetQueryCache(QUERY_CACHE_SIZE_BYTES);
+
+        // The provider is created at process start on the main thread. Opening the database
+        // (and running onCreate/onUpgrade) is left to a background thread so it is done before
+        // the first loader asks for data, instead of on whichever thread gets there first.
+        mCreatedAtMillis = SystemClock.elapsedRealtime();
+        if (mDatabaseName == null) {
+            HandlerThread exportThread = new HandlerThread("PetKioskExport",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            exportThread.start();
+            mKioskExportHandler = new Handler(exportThread.getLooper());
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                warmUp();
+                if (mDatabaseName == null) {
+                    runBackfills();
+                    archivePets();
+                    exportKioskSnapshot();
+                }
+            }
+        }, "PetDbWarmUp").start();
         return true;
     }
 
+    /**
+     * Closes the database. Only called for a provider created outside the manifest, such as
+     * the one a trace replay runs against.
+     */
+    @Override
+    public void shutdown() {
+        awaitWarmUp();
+        mDbHelper.close();
+    }
+
+    /*
+    * Opens the database, which runs any pending migration, and reads through the pets table
+    * and its breed index once so their pages are in the page cache for the first query.
+    * */
+    private void warmUp() {
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            DatabaseUtils.longForQuery(database,
+                    "SELECT count(*) FROM " + PetEntry.VIEW_NAME, null);
+            DatabaseUtils.longForQuery(database, "SELECT count(" + PetEntry.COLUMN_PET_BREED_ID +
+                    ") FROM " + PetEntry.TABLE_NAME, null);
+            Log.d(LOG_TAG, "Database warmed up in "
+                    + (SystemClock.elapsedRealtime() - mCreatedAtMillis) + " ms");
+        } catch (RuntimeException e) {
+            // The first provider call will open the database again and report the error
+            Log.e(LOG_TAG, "Failed to warm up database", e);
+        } finally {
+            mWarmUpLatch.countDown();
+        }
+    }
+
+    /*
+    * Runs the data backfills left by schema migrations, batch by batch, while the provider
+    * serves requests. Observers are only notified, now and then, for backfills that change
+    * what the views return.
+    * */
+    private void runBackfills() {
+        try {
+            PetBackfillRunner.runPending(mDbHelper.getWritableDatabase(),
+                    mNotifyBatchCommitted);
+        } catch (RuntimeException e) {
+            // Whatever is left stays scheduled and is picked up on the next start
+            Log.e(LOG_TAG, "Failed to run backfills", e);
+        }
+    }
+
+    /*
+    * Moves the pets that were adopted or transferred more than ARCHIVE_DELAY_MILLIS ago to the
+    * archive tables, in the same small batches as the backfills.
+    * */
+    private void archivePets() {
+        try {
+            PetBackfillRunner.run(mDbHelper.getWritableDatabase(),
+                    new PetArchiver(System.currentTimeMillis()), mNotifyBatchCommitted);
+        } catch (RuntimeException e) {
+            // The pets stay in the pets table until the next start
+            Log.e(LOG_TAG, "Failed to archive pets", e);
+        }
+    }
+
+    /*
+    * Writes the current catalog to the kiosk snapshot file, so kiosks started after this see
+    * the pets as of the export. Runs at provider start, on an explicit export and, through
+    * scheduleKioskSnapshotExport(), after writes that changed pets.
+    * */
+    private int exportKioskSnapshot() {
+        try {
+            return KioskSnapshotWriter.export(mDbHelper.getReadableDatabase(),
+                    new File(getContext().getFilesDir(), KioskSnapshot.FILE_NAME));
+        } catch (IOException e) {
+            // Kiosks keep showing the previous snapshot
+            Log.e(LOG_TAG, "Failed to export kiosk snapshot", e);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to export kiosk snapshot", e);
+        }
+        return -1;
+    }
+
+    /*
+    * Schedules an export of the kiosk snapshot KIOSK_EXPORT_DELAY_MILLIS after the last write
+    * that changed pets, but no later than KIOSK_EXPORT_MAX_DELAY_MILLIS after the first one
+    * that is still unexported. A write during an export schedules the next one, so the file
+    * always catches up with the last write.
+    * */
+    private void scheduleKioskSnapshotExport() {
+        if (mKioskExportHandler == null) {
+            return;
+        }
+        synchronized (mExportKioskSnapshot) {
+            long now = SystemClock.uptimeMillis();
+            if (mKioskExportDeadline == 0) {
+                mKioskExportDeadline = now + KIOSK_EXPORT_MAX_DELAY_MILLIS;
+            }
+            mKioskExportHandler.removeCallbacks(mExportKioskSnapshot);
+            mKioskExportHandler.postAtTime(mExportKioskSnapshot,
+                    Math.min(now + KIOSK_EXPORT_DELAY_MILLIS, mKioskExportDeadline));
+        }
+    }
+
+    // Notifies the observers of the given pets URI that rows changed, and schedules a kiosk
+    // snapshot export to pick up the change
+    private void notifyPetsChanged(Uri uri) {
+        notifyChange(uri);
+        scheduleKioskSnapshotExport();
+    }
+
+    // Notifies the observers of the given URI that rows changed. A trace replay changes its own
+    // copy of the database, so the app's observers aren't told.
+    private void notifyChange(Uri uri) {
+        if (mDatabaseName == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /*
+    * Waits for the warm-up thread to finish opening the database. Loaders and binder calls
+    * wait off the main thread; a main thread caller is logged since it would stall the UI.
+    * */
+    void awaitWarmUp() {
+        if (mWarmUpLatch.getCount() == 0) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(LOG_TAG, "Database accessed on the main thread before warm-up finished");
+        }
+        try {
+            mWarmUpLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection,
      * selection arguments, and sort order.
@@ -69,20 +402,55 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        PetTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return runQuery(uri, projection, selection, selectionArgs, sortOrder);
+        }
+        long startNanos = System.nanoTime();
+        Cursor cursor = runQuery(uri, projection, selection, selectionArgs, sortOrder);
+        // Counting the rows runs the query, which is what the trace should time
+        recorder.recordQuery(sUriMatcher.match(uri), uri, projection, selection, selectionArgs,
+                sortOrder, cursor.getCount(), startNanos);
+        return cursor;
+    }
 
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
-        Cursor cursor;
+    // Helper method for query(), runs the query
+    private Cursor runQuery(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
 
         // Check if the URI matcher matches the URI to a specific code
         int match = sUriMatcher.match(uri);
 
+        // The summary and the history depend on rows that are all notified below the pets
+        // content URI
+        Uri notificationUri = match == PETS_SUMMARY || match == PETS_HISTORY
+                || match == PETS_AREA || match == PETS_SECTIONS ? PetEntry.CONTENT_URI : uri;
+
+        // Serve repeated identical queries (e.g. after every rotation) from the cache without
+        // touching SQLite
+        String cacheKey = PetQueryCache.makeKey(match, uri, projection, selection, selectionArgs,
+                sortOrder);
+        Cursor cursor = mCacheQueries ? mQueryCache.get(cacheKey) : null;
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+            recordQuery(uri, projection, cursor);
+            return trackCursor(cursor, uri);
+        }
+        long cacheGeneration = mQueryCache.getGeneration();
+        if (mDatabaseName == null) {
+            sDatabaseQueryCount.incrementAndGet();
+        }
+
+        awaitWarmUp();
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
         switch (match) {
             case PETS:
-                // For the PETS code, query the pets table directly with the given
+                // For the PETS code, query the pet details view with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
                 // Perform database query on pets table
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                cursor = database.query(PetEntry.VIEW_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
             case PET_ID:
@@ -99,17 +467,98 @@ public class PetProvider extends ContentProvider {
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                cursor = database.query(PetEntry.VIEW_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case PETS_SUMMARY:
+                // Query the pets joined with the pending count and next due date of their
+                // medical records
+                SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+                builder.setTables(PET_SUMMARY_TABLES);
+                cursor = builder.query(database, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case PETS_HISTORY:
+                // Only the history reads the archive, every other pets URI stays on the
+                // pets table
+                cursor = database.query(PetEntry.HISTORY_VIEW_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PETS_AREA:
+                // Query the pet details of the kennels in the area of the URI parameters
+                if (mHasKennelRtree == null) {
+                    mHasKennelRtree = PetDbHelper.hasKennelRtree(database);
+                }
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        toAreaSelection(mHasKennelRtree));
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        toAreaSelectionArgs(mHasKennelRtree, uri));
+                cursor = database.query(PetEntry.VIEW_NAME, projection, selection, selectionArgs,
+                        null, null, sortOrder);
+                break;
+            case PETS_SECTIONS:
+                // The triggers keep a count per section, so this reads at most 27 rows. Sections
+                // that became empty are left out.
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        SectionEntry.COLUMN_SECTION_PET_COUNT + " > 0");
+                cursor = database.query(SectionEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null,
+                        sortOrder == null ? SectionEntry.COLUMN_SECTION_NAME : sortOrder);
+                break;
+            case PET_MEDICAL:
+            case PET_MEDICAL_ID:
+                // Query the medical records of the pet in the URI, or a single one of them
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        toMedicalSelection(match, uri));
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        toMedicalSelectionArgs(match, uri));
+                cursor = database.query(MedicalEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null,
+                        sortOrder == null ? MedicalEntry.COLUMN_MEDICAL_DUE_DATE : sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        // Keep a copy of the result for the next identical query
+        if (mCacheQueries) {
+            cursor = mQueryCache.put(cacheKey, cacheGeneration, cursor);
+        }
+
+        if (mFirstQueryLogged.compareAndSet(false, true)) {
+            Log.d(LOG_TAG, "Time to first query: "
+                    + (SystemClock.elapsedRealtime() - mCreatedAtMillis) + " ms");
+        }
+
         // Set notification URI on the Cursor
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
-        return cursor;
+        recordQuery(uri, projection, cursor);
+
+        // In debug builds, report the cursor if the caller never closes it
+        return trackCursor(cursor, uri);
+    }
+
+    // Records a query in the debug operation log. Counting the rows fills the cursor window,
+    // which the caller would do on its first move anyway.
+    private void recordQuery(Uri uri, String[] projection, Cursor cursor) {
+        if (PetOperationLog.ENABLED) {
+            recordOperation(PetOperationLog.TYPE_QUERY, uri, projection, cursor.getCount());
+        }
+    }
+
+    // Records an operation in the debug operation log. The operations of a trace replay aren't
+    // the app's, so they would be charged to the wrong flows.
+    private void recordOperation(int type, Uri uri, String[] detail, int rows) {
+        if (mDatabaseName == null) {
+            PetOperationLog.record(type, uri, detail, rows);
+        }
+    }
+
+    // Returns the cursor tracked in debug builds, or as is for a trace replay, whose cursors
+    // the app's flows shouldn't find open
+    private Cursor trackCursor(Cursor cursor, Uri uri) {
+        return mDatabaseName == null ? CursorTracker.track(cursor, uri) : cursor;
     }
 
     /**
@@ -117,15 +566,35 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        PetTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return runInsert(uri, contentValues);
+        }
+        long startNanos = System.nanoTime();
+        Uri newUri = runInsert(uri, contentValues);
+        recorder.recordInsert(sUriMatcher.match(uri), uri, contentValues, newUri == null ? 0 : 1,
+                startNanos);
+        return newUri;
+    }
+
+    // Helper method for insert(), runs the insert
+    private Uri runInsert(Uri uri, ContentValues contentValues) {
 
         final int match = sUriMatcher.match(uri);
 
+        Uri newUri;
         switch (match) {
             case PETS:
-                return insertPet(uri, contentValues);
+                newUri = insertPet(uri, contentValues);
+                break;
+            case PET_MEDICAL:
+                newUri = insertMedicalRecord(uri, contentValues);
+                break;
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
+        recordOperation(PetOperationLog.TYPE_INSERT, uri, null, newUri == null ? 0 : 1);
+        return newUri;
     }
 
     /**
@@ -134,110 +603,265 @@ public class PetProvider extends ContentProvider {
      */
     private Uri insertPet(Uri uri, ContentValues values) {
 
-        // Check pet name is not null
-        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Pet requires valid name");
-        }
-
-        // Check pet gender == GENDER_UNKNOWN OR GENDER_MALE OR GENDER_FEMALE
-        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-        if (gender == null || !isValidGender(gender)) {
-            throw new IllegalArgumentException("Pet requires valid gender");
-        }
-
-        // Check pet weight is not null or less than 0
-        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-        if (weight != null && weight < 0) {
-            throw new IllegalArgumentException("Pet requires valid weight");
-        }
+        // Check the pet has a name and a valid gender, and a valid weight if one is given
+        PetValidator.validate(values, true);
 
         // Insert a new pet into the pets database table with the given ContentValues
         // Get writable db
+        awaitWarmUp();
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert new Pet with given values
-        long id = database.insert(PetEntry.TABLE_NAME, null, values);
+        // Insert new Pet with given values. The breed row and the pet row are written in one
+        // transaction so a failed insert doesn't leave an unused breed behind.
+        long id;
+        database.beginTransaction();
+        try {
+            id = database.insert(PetEntry.TABLE_NAME, null,
+                    toTableValues(database, values, null, true));
+            if (id != -1) {
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
 
         if (id == -1) {
             Log.e(LOG_TAG, "Failed to insert new row for " + uri);
             return null;
         }
+        mQueryCache.invalidate();
 
         // Notify all listeners that data has changed for Pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyPetsChanged(uri);
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
         return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * Insert a medical record for the pet in the given URI. Return the content URI of the new
+     * record.
+     */
+    private Uri insertMedicalRecord(Uri uri, ContentValues values) {
+
+        // Check the record has a description and, if given, a valid type
+        if (values.getAsString(MedicalEntry.COLUMN_MEDICAL_DESCRIPTION) == null) {
+            throw new IllegalArgumentException("Medical record requires valid description");
+        }
+        if (values.containsKey(MedicalEntry.COLUMN_MEDICAL_TYPE)) {
+            Integer type = values.getAsInteger(MedicalEntry.COLUMN_MEDICAL_TYPE);
+            if (type == null || !MedicalEntry.isValidType(type)) {
+                throw new IllegalArgumentException("Medical record requires valid type");
+            }
+        }
+
+        // The pet is always the one in the URI
+        ContentValues recordValues = new ContentValues(values);
+        recordValues.put(MedicalEntry.COLUMN_MEDICAL_PET_ID, getPetIdFromMedicalUri(uri));
+
+        awaitWarmUp();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        long id = database.insert(MedicalEntry.TABLE_NAME, null, recordValues);
+
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert new row for " + uri);
+            return null;
+        }
+        mQueryCache.invalidate();
+
+        // Notify listeners of the pet's records, and through the pets URI, the summary
+        notifyChange(uri);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Insert all of the given pets in a single transaction. Every row is validated before
+     * anything is written, and listeners are notified once for the whole batch.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        PetTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return runBulkInsert(uri, values);
+        }
+        long startNanos = System.nanoTime();
+        int rowsInserted = runBulkInsert(uri, values);
+        recorder.recordBulkInsert(sUriMatcher.match(uri), uri, values, rowsInserted, startNanos);
+        return rowsInserted;
+    }
+
+    // Helper method for bulkInsert(), runs the bulk insert
+    private int runBulkInsert(Uri uri, ContentValues[] values) {
+
+        final int match = sUriMatcher.match(uri);
+        if (match != PETS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        // Reports the errors of every invalid row, not only the first one
+        PetValidator.validateInserts(values);
+
+        awaitWarmUp();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        // Breeds repeat within a batch, so each one is looked up only once
+        Map<String, Long> breedIds = new HashMap<String, Long>();
+        int rowsInserted = 0;
+        database.beginTransaction();
+        try {
+            for (ContentValues petValues : values) {
+                long id = database.insert(PetEntry.TABLE_NAME, null,
+                        toTableValues(database, petValues, breedIds, true));
+                if (id == -1) {
+                    Log.e(LOG_TAG, "Failed to bulk insert rows for " + uri);
+                    return 0;
+                }
+                rowsInserted++;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted > 0) {
+            mQueryCache.invalidate();
+            notifyPetsChanged(uri);
+        }
+        recordOperation(PetOperationLog.TYPE_INSERT, uri, null, rowsInserted);
+        return rowsInserted;
+    }
+
     /**
      * Updates the data at the given selection and selection arguments, with the new ContentValues.
      */
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        PetTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return runUpdate(uri, values, selection, selectionArgs);
+        }
+        long startNanos = System.nanoTime();
+        int rowsUpdated = runUpdate(uri, values, selection, selectionArgs);
+        recorder.recordWrite(sUriMatcher.match(uri), uri, values, selection, selectionArgs,
+                rowsUpdated, startNanos);
+        return rowsUpdated;
+    }
+
+    // Helper method for update(), runs the update
+    private int runUpdate(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
 
         final int match = sUriMatcher.match(uri);
 
+        int rowsUpdated;
         switch (match) {
             case PETS:
                 // Update all rows that match the selection and selection args
-                return updatePet(uri, values, selection, selectionArgs);
+                rowsUpdated = updatePet(uri, values, selection, selectionArgs);
+                break;
             case PET_ID:
                 // Update a single row given by the ID in the URI
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updatePet(uri, values, selection, selectionArgs);
+                rowsUpdated = updatePet(uri, values, selection, selectionArgs);
+                break;
+            case PET_MEDICAL_ID:
+                // Update a single medical record given by the IDs in the URI
+                rowsUpdated = updateMedicalRecord(uri, values);
+                break;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
+        recordOperation(PetOperationLog.TYPE_UPDATE, uri, null, rowsUpdated);
+        return rowsUpdated;
     }
 
     // Helper method for update() method
     private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         int rowsUpdated;
 
-        // If key/value pair for name is present, check if valid
-        if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
-            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Pet requires valid name");
-            }
+        // Check every column that is present is valid
+        PetValidator.validate(values, false);
+
+        // If there are no values to update, then don't update the database
+        if (values.size() == 0) {
+            return 0;
         }
 
-        // If key/value pair for gender is present, check if valid
-        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
-            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-            if (gender == null || !PetEntry.isValidGender(gender)) {
-                throw new IllegalArgumentException("Pet requires valid gender");
+        awaitWarmUp();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        //  Update the selected pets in the pets database table with the given ContentValues
+        String tableSelection = toTableSelection(selection);
+        database.beginTransaction();
+        try {
+            // A new name or breed changes the duplicate detection key. The pets are picked
+            // before the update, which may change what the selection matches.
+            String[] rekeyIds = null;
+            if (values.containsKey(PetEntry.COLUMN_PET_NAME)
+                    || values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+                rekeyIds = queryPetIds(database, tableSelection, selectionArgs);
+            }
+
+            rowsUpdated = database.update(PetEntry.TABLE_NAME,
+                    toTableValues(database, values, null, false),
+                    tableSelection, selectionArgs);
+            if (rekeyIds != null) {
+                updateDedupKeys(database, rekeyIds);
             }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // If rowsUpdated > 0, notify all listeners that data has changed for Pet content URI
+        if (rowsUpdated > 0) {
+            mQueryCache.invalidate();
+            notifyPetsChanged(uri);
         }
 
-        // If key/value pair for weight is present, check if valid
-        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
-            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-            if (weight == null || weight < 0) {
-                throw new IllegalArgumentException("Pet requires valid weight");
+        // Return the number of rows that were updated
+        return rowsUpdated;
+    }
+
+    // Helper method for update() method, for a single medical record
+    private int updateMedicalRecord(Uri uri, ContentValues values) {
+
+        // If key/value pair for description is present, check if valid
+        if (values.containsKey(MedicalEntry.COLUMN_MEDICAL_DESCRIPTION)
+                && values.getAsString(MedicalEntry.COLUMN_MEDICAL_DESCRIPTION) == null) {
+            throw new IllegalArgumentException("Medical record requires valid description");
+        }
+
+        // If key/value pair for type is present, check if valid
+        if (values.containsKey(MedicalEntry.COLUMN_MEDICAL_TYPE)) {
+            Integer type = values.getAsInteger(MedicalEntry.COLUMN_MEDICAL_TYPE);
+            if (type == null || !MedicalEntry.isValidType(type)) {
+                throw new IllegalArgumentException("Medical record requires valid type");
             }
         }
 
+        // A record can't be moved to another pet
+        if (values.containsKey(MedicalEntry.COLUMN_MEDICAL_PET_ID)) {
+            throw new IllegalArgumentException("Medical record pet can't be changed");
+        }
+
         // If there are no values to update, then don't update the database
         if (values.size() == 0) {
             return 0;
         }
 
+        awaitWarmUp();
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated = database.update(MedicalEntry.TABLE_NAME, values,
+                toMedicalSelection(PET_MEDICAL_ID, uri),
+                toMedicalSelectionArgs(PET_MEDICAL_ID, uri));
 
-        //  Update the selected pets in the pets database table with the given ContentValues
-        rowsUpdated = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
-
-        // If rowsUpdated > 0, notify all listeners that data has changed for Pet content URI
         if (rowsUpdated > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mQueryCache.invalidate();
+            notifyChange(uri);
         }
-
-        // Return the number of rows that were updated
         return rowsUpdated;
     }
 
@@ -246,7 +870,21 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        PetTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return runDelete(uri, selection, selectionArgs);
+        }
+        long startNanos = System.nanoTime();
+        int rowsDeleted = runDelete(uri, selection, selectionArgs);
+        recorder.recordWrite(sUriMatcher.match(uri), uri, null, selection, selectionArgs,
+                rowsDeleted, startNanos);
+        return rowsDeleted;
+    }
 
+    // Helper method for delete(), runs the delete
+    private int runDelete(Uri uri, String selection, String[] selectionArgs) {
+
+        awaitWarmUp();
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         int rowsDeleted;
@@ -254,7 +892,8 @@ public class PetProvider extends ContentProvider {
         switch (match) {
             case PETS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = database.delete(PetEntry.TABLE_NAME, toTableSelection(selection),
+                        selectionArgs);
                 break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
@@ -262,19 +901,826 @@ public class PetProvider extends ContentProvider {
                 selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri))};
                 rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case PET_MEDICAL:
+            case PET_MEDICAL_ID:
+                // Delete the medical records of the pet in the URI that match the selection,
+                // or a single one of them
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        toMedicalSelection(match, uri));
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        toMedicalSelectionArgs(match, uri));
+                rowsDeleted = database.delete(MedicalEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Delete not supported for " + uri);
         }
 
-        // If rowsDeleted > 0, notify all listeners that data has changed for Pet content URI
+        // If rowsDeleted > 0, notify all listeners that data has changed for Pet content URI.
+        // Medical records aren't in the kiosk snapshot.
         if (rowsDeleted > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            mQueryCache.invalidate();
+            if (match == PETS || match == PET_ID) {
+                notifyPetsChanged(uri);
+            } else {
+                notifyChange(uri);
+            }
         }
+        recordOperation(PetOperationLog.TYPE_DELETE, uri, null, rowsDeleted);
 
         // Return the number of rows that were deleted
         return rowsDeleted;
     }
 
+    /**
+     * Returns the number of queries this process has sent to SQLite through the provider.
+     * Used to check that flows such as rotating the catalog don't query the database.
+     */
+    public static int getDatabaseQueryCount() {
+        return sDatabaseQueryCount.get();
+    }
+
+    /**
+     * Handles provider specific method calls, see the METHOD_ constants in {@link PetContract}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        PetTraceRecorder recorder = mTraceRecorder;
+        long startNanos = System.nanoTime();
+        Bundle result = callMethod(method, arg, extras);
+        if (recorder != null) {
+            recorder.recordCall(method, arg, extras, PetTraceRecorder.countRows(result),
+                    startNanos);
+        }
+        if (PetOperationLog.ENABLED && mDatabaseName == null) {
+            if (PetContract.METHOD_UPDATE_PETS_BY_ID.equals(method)
+                    || PetContract.METHOD_DELETE_PETS_BY_ID.equals(method)) {
+                // Batch writes count as the update or delete they are
+                PetOperationLog.record(PetContract.METHOD_UPDATE_PETS_BY_ID.equals(method)
+                                ? PetOperationLog.TYPE_UPDATE : PetOperationLog.TYPE_DELETE,
+                        PetEntry.CONTENT_URI, new String[] { method },
+                        result.getInt(PetContract.EXTRA_PET_COUNT));
+            } else {
+                // Calls that return pets list their IDs, count those as the rows
+                long[] ids = result == null ? null : result.getLongArray(PetContract.EXTRA_IDS);
+                PetOperationLog.record(PetOperationLog.TYPE_CALL, PetEntry.CONTENT_URI,
+                        new String[] { method }, ids == null ? 0 : ids.length);
+            }
+        }
+        return result;
+    }
+
+    // Helper method for call(), runs the given method
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(PetContract.EXTRA_CACHE_HITS, mQueryCache.hitCount());
+            stats.putInt(PetContract.EXTRA_CACHE_MISSES, mQueryCache.missCount());
+            Log.d(LOG_TAG, "Query cache " + mQueryCache.getStats());
+            return stats;
+        }
+        if (PetContract.METHOD_GET_PETS_BY_ID.equals(method)) {
+            return getPetsById(extras);
+        }
+        if (PetContract.METHOD_FIND_DUPLICATES.equals(method)) {
+            return findDuplicates(extras);
+        }
+        if (PetContract.METHOD_UPDATE_PETS_BY_ID.equals(method)) {
+            return updatePetsById(extras);
+        }
+        if (PetContract.METHOD_DELETE_PETS_BY_ID.equals(method)) {
+            return deletePetsById(extras);
+        }
+        if (PetContract.METHOD_GET_DUPLICATE_REPORT.equals(method)) {
+            awaitWarmUp();
+            return toMatchesBundle(PetDedup.findDuplicatePairs(mDbHelper.getReadableDatabase(),
+                    PetContract.MAX_IDS_PER_CALL), true);
+        }
+        if (PetContract.METHOD_EXPORT_KIOSK_SNAPSHOT.equals(method)) {
+            awaitWarmUp();
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_PET_COUNT, exportKioskSnapshot());
+            return result;
+        }
+        if (PetContract.METHOD_BACKUP.equals(method)) {
+            awaitWarmUp();
+            return backup();
+        }
+        if (PetContract.METHOD_RESTORE.equals(method)) {
+            awaitWarmUp();
+            return restore();
+        }
+        if (PetContract.METHOD_START_TRACE.equals(method)) {
+            awaitWarmUp();
+            return startTrace(arg == null ? PetContract.DEFAULT_TRACE_NAME : arg);
+        }
+        if (PetContract.METHOD_STOP_TRACE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_OPERATION_COUNT, stopTrace());
+            return result;
+        }
+        if (PetContract.METHOD_REPLAY_TRACE.equals(method)) {
+            return replayTrace(arg == null ? PetContract.DEFAULT_TRACE_NAME : arg, extras);
+        }
+        if (PetContract.METHOD_LOAD_TEST.equals(method)) {
+            return loadTest(extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /*
+    * Writes a backup of the database to the backup file while requests go on, see
+    * PetContract.METHOD_BACKUP.
+    * */
+    private Bundle backup() {
+        Bundle result = new Bundle();
+        try {
+            PetBackup.Stats stats = PetBackup.backup(mDbHelper.getWritableDatabase(),
+                    getBackupFile(PetBackup.BACKUP_FILE_NAME));
+            result.putLong(PetContract.EXTRA_BACKUP_BYTES, stats.mBytes);
+            result.putLong(PetContract.EXTRA_DURATION_MILLIS, stats.mMillis);
+            result.putLong(PetContract.EXTRA_BYTES_PER_SECOND, stats.getBytesPerSecond());
+            result.putLong(PetContract.EXTRA_WRITERS_BLOCKED_MILLIS,
+                    stats.mWritersBlockedMillis);
+        } catch (IOException e) {
+            // The previous backup, if any, stays in place
+            Log.e(LOG_TAG, "Failed to back up database", e);
+            result.putLong(PetContract.EXTRA_BACKUP_BYTES, -1);
+        }
+        return result;
+    }
+
+    /*
+    * Replaces the contents of the database with the backup staged at PetContract.BACKUP_URI,
+    * see PetContract.METHOD_RESTORE. Backfills scheduled by migrating an older backup already
+    * ran on its copy, so the restored pets are complete. The live database keeps its own
+    * pending backfills, which are resumed afterwards so they also cover the restored rows.
+    * */
+    private Bundle restore() {
+        Bundle result = new Bundle();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        PetBackup.Stats stats;
+        try {
+            stats = PetBackup.restore(getContext(), database,
+                    getBackupFile(PetBackup.RESTORE_FILE_NAME));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to restore database", e);
+            result.putInt(PetContract.EXTRA_PET_COUNT, -1);
+            return result;
+        }
+        mNotifyBatchCommitted.run();
+        runBackfills();
+
+        result.putInt(PetContract.EXTRA_PET_COUNT, stats.mPets);
+        result.putLong(PetContract.EXTRA_DURATION_MILLIS, stats.mMillis);
+        result.putLong(PetContract.EXTRA_WRITERS_BLOCKED_MILLIS, stats.mWritersBlockedMillis);
+        return result;
+    }
+
+    /*
+    * Starts recording every operation to the trace of the given name, after backing up the
+    * database as the state the trace starts from. A trace already running is stopped first.
+    * */
+    private synchronized Bundle startTrace(String name) {
+        stopTrace();
+        Bundle result = new Bundle();
+        try {
+            PetBackup.backup(mDbHelper.getWritableDatabase(),
+                    getTraceFile(name, TRACE_START_STATE_SUFFIX));
+            mTraceRecorder = PetTraceRecorder.start(getTraceFile(name, TRACE_SUFFIX));
+            result.putInt(PetContract.EXTRA_OPERATION_COUNT, 0);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to start trace " + name, e);
+            result.putInt(PetContract.EXTRA_OPERATION_COUNT, -1);
+        }
+        return result;
+    }
+
+    // Stops recording, returns the number of operations recorded or -1 if none was running
+    private synchronized int stopTrace() {
+        PetTraceRecorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return -1;
+        }
+        mTraceRecorder = null;
+        try {
+            return recorder.stop();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to finish trace", e);
+            return -1;
+        }
+    }
+
+    /*
+    * Starts replaying the trace of the given name on a copy of the database it started from,
+    * see PetContract.METHOD_REPLAY_TRACE. The replay runs on its own thread instead of keeping
+    * the caller waiting, and its report goes to the caller's ResultReceiver, if any.
+    * */
+    private Bundle replayTrace(final String name, Bundle extras) {
+        final int threads = extras == null ? 1 : extras.getInt(PetContract.EXTRA_THREADS, 1);
+        final boolean realTime = extras != null && extras.getBoolean(PetContract.EXTRA_REAL_TIME);
+        final ResultReceiver receiver = extras == null ? null
+                : (ResultReceiver) extras.getParcelable(PetContract.EXTRA_RESULT_RECEIVER);
+        if (threads < 1) {
+            throw new IllegalArgumentException("Replay requires at least one thread");
+        }
+        final File trace = getTraceFile(name, TRACE_SUFFIX);
+        final File startState = getTraceFile(name, TRACE_START_STATE_SUFFIX);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle report = new Bundle();
+                try {
+                    PetTraceReplayer.Report replay = PetTraceReplayer.replay(getContext(),
+                            trace, startState, threads, realTime);
+                    report.putInt(PetContract.EXTRA_OPERATION_COUNT, replay.mOperations);
+                    report.putInt(PetContract.EXTRA_FAILED_COUNT, replay.mFailures);
+                    report.putInt(PetContract.EXTRA_DIVERGED_COUNT, replay.mDiverged);
+                    report.putLong(PetContract.EXTRA_DURATION_MILLIS, replay.mMillis);
+                    report.putLong(PetContract.EXTRA_OPERATIONS_PER_SECOND,
+                            replay.getOperationsPerSecond());
+                    report.putLongArray(PetContract.EXTRA_LATENCY_MICROS, replay.mLatencyMicros);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to replay trace " + name, e);
+                    report.putInt(PetContract.EXTRA_OPERATION_COUNT, -1);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to replay trace " + name, e);
+                    report.putInt(PetContract.EXTRA_OPERATION_COUNT, -1);
+                }
+                if (receiver != null) {
+                    receiver.send(PetContract.REPLAY_FINISHED, report);
+                }
+            }
+        }, "PetTraceReplay").start();
+        return new Bundle();
+    }
+
+    /*
+    * Starts a load test of concurrent queries on a backup of the database, see
+    * PetContract.METHOD_LOAD_TEST. Like a replay, it runs on its own thread and its report goes
+    * to the caller's ResultReceiver, if any.
+    * */
+    private Bundle loadTest(Bundle extras) {
+        int[] requestedLevels = extras == null ? null
+                : extras.getIntArray(PetContract.EXTRA_CONCURRENCY_LEVELS);
+        final int[] levels = requestedLevels == null
+                ? PetLoadTester.DEFAULT_CONCURRENCY_LEVELS : requestedLevels;
+        final int queries = extras == null ? PetLoadTester.DEFAULT_QUERIES_PER_LEVEL
+                : extras.getInt(PetContract.EXTRA_OPERATION_COUNT,
+                PetLoadTester.DEFAULT_QUERIES_PER_LEVEL);
+        final ResultReceiver receiver = extras == null ? null
+                : (ResultReceiver) extras.getParcelable(PetContract.EXTRA_RESULT_RECEIVER);
+        for (int threads : levels) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Load test requires at least one thread");
+            }
+        }
+        if (queries < 1) {
+            throw new IllegalArgumentException("Load test requires at least one query");
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bundle report = new Bundle();
+                try {
+                    awaitWarmUp();
+                    PetLoadTester.Report[] levelReports = PetLoadTester.run(getContext(),
+                            mDbHelper.getWritableDatabase(), levels, queries);
+                    long[] queriesPerSecond = new long[levelReports.length];
+                    long[] p99LatencyMicros = new long[levelReports.length];
+                    int failures = 0;
+                    for (int i = 0; i < levelReports.length; i++) {
+                        queriesPerSecond[i] = levelReports[i].getQueriesPerSecond();
+                        p99LatencyMicros[i] = levelReports[i].getP99LatencyMicros();
+                        failures += levelReports[i].mFailures;
+                    }
+                    report.putIntArray(PetContract.EXTRA_CONCURRENCY_LEVELS, levels);
+                    report.putInt(PetContract.EXTRA_OPERATION_COUNT, queries);
+                    report.putInt(PetContract.EXTRA_FAILED_COUNT, failures);
+                    report.putLongArray(PetContract.EXTRA_OPERATIONS_PER_SECOND,
+                            queriesPerSecond);
+                    report.putLongArray(PetContract.EXTRA_P99_LATENCY_MICROS, p99LatencyMicros);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to run load test", e);
+                    report.putInt(PetContract.EXTRA_OPERATION_COUNT, -1);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to run load test", e);
+                    report.putInt(PetContract.EXTRA_OPERATION_COUNT, -1);
+                }
+                if (receiver != null) {
+                    receiver.send(PetContract.LOAD_TEST_FINISHED, report);
+                }
+            }
+        }, "PetLoadTest").start();
+        return new Bundle();
+    }
+
+    // Returns the file of the trace of the given name with the given suffix, creating the
+    // trace directory
+    private File getTraceFile(String name, String suffix) {
+        if (name.length() == 0 || name.contains(File.separator)) {
+            throw new IllegalArgumentException("Invalid trace name " + name);
+        }
+        File directory = new File(getContext().getFilesDir(), TRACE_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + directory);
+        }
+        return new File(directory, name + suffix);
+    }
+
+    // Returns the file of the given name in the backup directory, creating the directory
+    private File getBackupFile(String name) {
+        File directory = new File(getContext().getFilesDir(), PetBackup.BACKUP_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(LOG_TAG, "Failed to create " + directory);
+        }
+        return new File(directory, name);
+    }
+
+    /**
+     * Opens the latest backup for reading, or the file a backup to be restored is written to
+     * for a mode that includes "w". Only {@link PetContract#BACKUP_URI} has a file.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != BACKUP) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        // A staged backup replaces the previous one. ParcelFileDescriptor.parseMode() would
+        // need API 19, and only writing or not matters here.
+        if (mode.contains("w")) {
+            return ParcelFileDescriptor.open(getBackupFile(PetBackup.RESTORE_FILE_NAME),
+                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                            | ParcelFileDescriptor.MODE_TRUNCATE);
+        }
+        // The descriptor keeps reading this backup even if a newer one is renamed over it
+        return ParcelFileDescriptor.open(getBackupFile(PetBackup.BACKUP_FILE_NAME),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /*
+    * Looks up the pets with the IDs in the request and returns the requested columns as one
+    * primitive array per column, see PetContract.METHOD_GET_PETS_BY_ID.
+    * */
+    private Bundle getPetsById(Bundle extras) {
+        long[] ids = getBatchIds(extras, "Batch lookup", PetContract.MAX_IDS_PER_CALL);
+
+        String[] columns = extras.getStringArray(PetContract.EXTRA_PROJECTION);
+        if (columns == null) {
+            columns = BATCH_LOOKUP_COLUMNS;
+        }
+        boolean[] isIntegerColumn = new boolean[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            isIntegerColumn[i] = isBatchIntegerColumn(columns[i]);
+        }
+
+        // Query column 0 is the ID, followed by the requested columns
+        String[] projection = new String[columns.length + 1];
+        projection[0] = PetEntry._ID;
+        System.arraycopy(columns, 0, projection, 1, columns.length);
+
+        long[] foundIds = new long[ids.length];
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = isIntegerColumn[i] ? new int[ids.length] : new String[ids.length];
+        }
+
+        awaitWarmUp();
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+        // Query in chunks to stay under SQLite's limit on the number of bound arguments
+        int found = 0;
+        for (int start = 0; start < ids.length; start += MAX_IN_ARGUMENTS) {
+            String[] selectionArgs = toIdArgs(ids, start);
+            Cursor cursor = database.query(PetEntry.VIEW_NAME, projection,
+                    PetEntry._ID + " IN (" + makePlaceholders(selectionArgs.length) + ")",
+                    selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    foundIds[found] = cursor.getLong(0);
+                    for (int i = 0; i < columns.length; i++) {
+                        if (isIntegerColumn[i]) {
+                            ((int[]) values[i])[found] = cursor.getInt(i + 1);
+                        } else {
+                            ((String[]) values[i])[found] = cursor.getString(i + 1);
+                        }
+                    }
+                    found++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Trim the arrays to the number of pets found
+        Bundle result = new Bundle();
+        long[] resultIds = new long[found];
+        System.arraycopy(foundIds, 0, resultIds, 0, found);
+        result.putLongArray(PetContract.EXTRA_IDS, resultIds);
+        for (int i = 0; i < columns.length; i++) {
+            if (isIntegerColumn[i]) {
+                int[] column = new int[found];
+                System.arraycopy(values[i], 0, column, 0, found);
+                result.putIntArray(columns[i], column);
+            } else {
+                String[] column = new String[found];
+                System.arraycopy(values[i], 0, column, 0, found);
+                result.putStringArray(columns[i], column);
+            }
+        }
+        return result;
+    }
+
+    /*
+    * Updates the pets with the IDs in the request, see PetContract.METHOD_UPDATE_PETS_BY_ID.
+    * The values are validated and converted once, and every chunk of IDs is updated in the same
+    * transaction, so the batch is applied completely or not at all.
+    * */
+    private Bundle updatePetsById(Bundle extras) {
+        long[] ids = getBatchIds(extras, "Batch update", Integer.MAX_VALUE);
+        ContentValues values = extras.getParcelable(PetContract.EXTRA_VALUES);
+        if (values == null) {
+            throw new IllegalArgumentException("Batch update requires "
+                    + PetContract.EXTRA_VALUES);
+        }
+        PetValidator.validate(values, false);
+
+        int rowsUpdated = 0;
+        if (values.size() > 0 && ids.length > 0) {
+            awaitWarmUp();
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            boolean rekey = values.containsKey(PetEntry.COLUMN_PET_NAME)
+                    || values.containsKey(PetEntry.COLUMN_PET_BREED);
+            database.beginTransaction();
+            try {
+                ContentValues tableValues = toTableValues(database, values, null, false);
+                for (int start = 0; start < ids.length; start += MAX_IN_ARGUMENTS) {
+                    String[] selectionArgs = toIdArgs(ids, start);
+                    rowsUpdated += database.update(PetEntry.TABLE_NAME, tableValues,
+                            PetEntry._ID + " IN (" + makePlaceholders(selectionArgs.length) + ")",
+                            selectionArgs);
+                    if (rekey) {
+                        updateDedupKeys(database, selectionArgs);
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        if (rowsUpdated > 0) {
+            mQueryCache.invalidate();
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(PetContract.EXTRA_PET_COUNT, rowsUpdated);
+        return result;
+    }
+
+    /*
+    * Deletes the pets with the IDs in the request, and through the foreign key their medical
+    * records, in a single transaction. See PetContract.METHOD_DELETE_PETS_BY_ID.
+    * */
+    private Bundle deletePetsById(Bundle extras) {
+        long[] ids = getBatchIds(extras, "Batch delete", Integer.MAX_VALUE);
+
+        int rowsDeleted = 0;
+        if (ids.length > 0) {
+            awaitWarmUp();
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                for (int start = 0; start < ids.length; start += MAX_IN_ARGUMENTS) {
+                    String[] selectionArgs = toIdArgs(ids, start);
+                    rowsDeleted += database.delete(PetEntry.TABLE_NAME,
+                            PetEntry._ID + " IN (" + makePlaceholders(selectionArgs.length) + ")",
+                            selectionArgs);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        if (rowsDeleted > 0) {
+            mQueryCache.invalidate();
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(PetContract.EXTRA_PET_COUNT, rowsDeleted);
+        return result;
+    }
+
+    // Returns the pet IDs of a batch request, throwing if they are missing or more than maxIds.
+    // The operation names the request in the error message. Lookups are limited since their
+    // result holds every pet; writes only return a count and are chunked into MAX_IN_ARGUMENTS
+    // IDs inside their transaction, so they take any number.
+    private static long[] getBatchIds(Bundle extras, String operation, int maxIds) {
+        long[] ids = extras == null ? null : extras.getLongArray(PetContract.EXTRA_IDS);
+        if (ids == null) {
+            throw new IllegalArgumentException(operation + " requires " + PetContract.EXTRA_IDS);
+        }
+        if (ids.length > maxIds) {
+            throw new IllegalArgumentException(operation + " is limited to "
+                    + maxIds + " IDs per call");
+        }
+        return ids;
+    }
+
+    // Returns the selection arguments of the chunk of at most MAX_IN_ARGUMENTS IDs that begins
+    // at the given index
+    private static String[] toIdArgs(long[] ids, int start) {
+        int end = Math.min(ids.length, start + MAX_IN_ARGUMENTS);
+        String[] selectionArgs = new String[end - start];
+        for (int i = start; i < end; i++) {
+            selectionArgs[i - start] = String.valueOf(ids[i]);
+        }
+        return selectionArgs;
+    }
+
+    /*
+    * Finds the likely duplicates of the pet in the request, see
+    * PetContract.METHOD_FIND_DUPLICATES. Only the pets with the same blocking key are read.
+    * */
+    private Bundle findDuplicates(Bundle extras) {
+        String name = extras == null ? null : extras.getString(PetEntry.COLUMN_PET_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Duplicate check requires "
+                    + PetEntry.COLUMN_PET_NAME);
+        }
+        String breed = extras.getString(PetEntry.COLUMN_PET_BREED);
+        int gender = extras.getInt(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        long excludeId = extras.getLong(PetContract.EXTRA_EXCLUDE_ID, -1);
+
+        awaitWarmUp();
+        return toMatchesBundle(PetDedup.findDuplicates(mDbHelper.getReadableDatabase(), name,
+                breed, gender, excludeId), false);
+    }
+
+    // Returns the given matches in the format of METHOD_GET_DUPLICATE_REPORT when isReport is
+    // true, and of METHOD_FIND_DUPLICATES otherwise
+    private static Bundle toMatchesBundle(List<PetDedup.Match> matches, boolean isReport) {
+        long[] ids = new long[matches.size()];
+        long[] otherIds = new long[matches.size()];
+        String[] names = new String[matches.size()];
+        float[] scores = new float[matches.size()];
+        for (int i = 0; i < ids.length; i++) {
+            PetDedup.Match match = matches.get(i);
+            ids[i] = match.mId;
+            otherIds[i] = match.mOtherId;
+            names[i] = match.mName;
+            scores[i] = match.mScore;
+        }
+
+        Bundle result = new Bundle();
+        if (isReport) {
+            result.putLongArray(PetContract.EXTRA_IDS, otherIds);
+            result.putLongArray(PetContract.EXTRA_DUPLICATE_IDS, ids);
+        } else {
+            result.putLongArray(PetContract.EXTRA_IDS, ids);
+            result.putStringArray(PetEntry.COLUMN_PET_NAME, names);
+        }
+        result.putFloatArray(PetContract.EXTRA_SCORES, scores);
+        return result;
+    }
+
+    // Returns whether the given batch lookup column is returned as an int[], throwing if the
+    // column can't be requested
+    private static boolean isBatchIntegerColumn(String column) {
+        if (PetEntry.COLUMN_PET_GENDER.equals(column) || PetEntry.COLUMN_PET_WEIGHT.equals(column)) {
+            return true;
+        }
+        if (PetEntry.COLUMN_PET_NAME.equals(column) || PetEntry.COLUMN_PET_BREED.equals(column)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Batch lookup doesn't support column " + column);
+    }
+
+    // Returns "?,?,...,?" with the given number of placeholders, for an IN (...) selection
+    static String makePlaceholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(',');
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+
+    /*
+    * Returns a copy of the given values that can be written to the pets table. The breed name
+    * callers pass in COLUMN_PET_BREED is replaced by the _ID of its row in the breeds table,
+    * adding the breed first if it is new. Breed IDs are remembered in breedIds when it isn't null.
+    * A status written without a status date gets the current time, a new pet gets its
+    * duplicate detection key, and a name its alphabet section.
+    * */
+    private ContentValues toTableValues(SQLiteDatabase database, ContentValues values,
+                                        Map<String, Long> breedIds, boolean isInsert) {
+        boolean hasName = values.containsKey(PetEntry.COLUMN_PET_NAME);
+        boolean hasBreed = values.containsKey(PetEntry.COLUMN_PET_BREED);
+        boolean needsStatusDate = values.containsKey(PetEntry.COLUMN_PET_STATUS)
+                && !values.containsKey(PetEntry.COLUMN_PET_STATUS_DATE);
+        if (!isInsert && !hasName && !hasBreed && !needsStatusDate) {
+            return values;
+        }
+
+        ContentValues tableValues = new ContentValues(values);
+        if (hasName) {
+            // The section counts triggers move the pet to its new section
+            tableValues.put(PetEntry.COLUMN_PET_NAME_SECTION,
+                    PetEntry.getNameSection(values.getAsString(PetEntry.COLUMN_PET_NAME)));
+        }
+        if (isInsert) {
+            // Updates recompute the key after the write, see updateDedupKeys()
+            tableValues.put(PetEntry.COLUMN_PET_DEDUP_KEY, PetDedup.makeKey(
+                    values.getAsString(PetEntry.COLUMN_PET_NAME),
+                    values.getAsString(PetEntry.COLUMN_PET_BREED)));
+        }
+        if (needsStatusDate) {
+            // The archive job picks pets by how long ago their status changed
+            tableValues.put(PetEntry.COLUMN_PET_STATUS_DATE, System.currentTimeMillis());
+        }
+        if (!hasBreed) {
+            return tableValues;
+        }
+
+        String breed = tableValues.getAsString(PetEntry.COLUMN_PET_BREED);
+        tableValues.remove(PetEntry.COLUMN_PET_BREED);
+        if (TextUtils.isEmpty(breed)) {
+            tableValues.putNull(PetEntry.COLUMN_PET_BREED_ID);
+        } else {
+            Long breedId = breedIds == null ? null : breedIds.get(breed);
+            if (breedId == null) {
+                breedId = getOrInsertBreedId(database, breed);
+                if (breedIds != null) {
+                    breedIds.put(breed, breedId);
+                }
+            }
+            tableValues.put(PetEntry.COLUMN_PET_BREED_ID, breedId);
+        }
+        return tableValues;
+    }
+
+    // Helper method that returns the _ID of the given breed, adding it to the breeds table
+    // if it isn't there yet
+    private long getOrInsertBreedId(SQLiteDatabase database, String breed) {
+        Cursor cursor = database.query(BreedEntry.TABLE_NAME, new String[] { BreedEntry._ID },
+                BreedEntry.COLUMN_BREED_NAME + "=?", new String[] { breed },
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues breedValues = new ContentValues();
+        breedValues.put(BreedEntry.COLUMN_BREED_NAME, breed);
+        return database.insertOrThrow(BreedEntry.TABLE_NAME, null, breedValues);
+    }
+
+    // Returns the _IDs of the pets that match the given pets table selection
+    private static String[] queryPetIds(SQLiteDatabase database, String selection,
+                                        String[] selectionArgs) {
+        Cursor cursor = database.query(PetEntry.TABLE_NAME, new String[] { PetEntry._ID },
+                selection, selectionArgs, null, null, null);
+        try {
+            String[] ids = new String[cursor.getCount()];
+            for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getString(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Recomputes the duplicate detection key of the pets with the given _IDs from their
+    // current name and breed
+    private static void updateDedupKeys(SQLiteDatabase database, String[] ids) {
+        for (int start = 0; start < ids.length; start += MAX_IN_ARGUMENTS) {
+            int end = Math.min(ids.length, start + MAX_IN_ARGUMENTS);
+            String[] selectionArgs = new String[end - start];
+            System.arraycopy(ids, start, selectionArgs, 0, selectionArgs.length);
+
+            Cursor cursor = database.query(PetEntry.VIEW_NAME, new String[] {
+                            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED},
+                    PetEntry._ID + " IN (" + makePlaceholders(selectionArgs.length) + ")",
+                    selectionArgs, null, null, null);
+            try {
+                PetDedup.updateKeys(database, cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    // Returns the pet _ID of a pets/#/medical or pets/#/medical/# URI
+    private static long getPetIdFromMedicalUri(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    // Returns the selection for the pet, and for PET_MEDICAL_ID the record, in a medical URI
+    private static String toMedicalSelection(int match, Uri uri) {
+        String selection = MedicalEntry.COLUMN_MEDICAL_PET_ID + "=?";
+        if (match == PET_MEDICAL_ID) {
+            selection += " AND " + MedicalEntry._ID + "=?";
+        }
+        return selection;
+    }
+
+    // Returns the arguments of toMedicalSelection() for the given URI
+    private static String[] toMedicalSelectionArgs(int match, Uri uri) {
+        String petId = String.valueOf(getPetIdFromMedicalUri(uri));
+        if (match == PET_MEDICAL_ID) {
+            return new String[] { petId, String.valueOf(ContentUris.parseId(uri)) };
+        }
+        return new String[] { petId };
+    }
+
+    /*
+    * Returns the selection of the pets with a kennel in the area of an area URI. The R*Tree
+    * stores coordinates as 32-bit floats, rounded outwards, so it only narrows the pets down by
+    * _ID and the exact bounds are checked on the view columns of those pets. Without the R*Tree
+    * the bounds go straight to the composite kennel index.
+    * */
+    private static String toAreaSelection(boolean hasKennelRtree) {
+        String selection = PetEntry.COLUMN_PET_KENNEL_BUILDING + "=? AND " +
+                PetEntry.COLUMN_PET_KENNEL_X + " BETWEEN ? AND ? AND " +
+                PetEntry.COLUMN_PET_KENNEL_Y + " BETWEEN ? AND ?";
+        if (!hasKennelRtree) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT id FROM " + PetDbHelper.KENNEL_RTREE_TABLE +
+                " WHERE min_building<=? AND max_building>=? AND max_x>=? AND min_x<=? AND " +
+                "max_y>=? AND min_y<=?) AND " + selection;
+    }
+
+    // Returns the arguments of toAreaSelection() for the parameters of the given area URI
+    private static String[] toAreaSelectionArgs(boolean hasKennelRtree, Uri uri) {
+        int building = getIntParameter(uri, PetEntry.PARAM_BUILDING);
+        double minX = getCoordinateParameter(uri, PetEntry.PARAM_MIN_X);
+        double maxX = getCoordinateParameter(uri, PetEntry.PARAM_MAX_X);
+        double minY = getCoordinateParameter(uri, PetEntry.PARAM_MIN_Y);
+        double maxY = getCoordinateParameter(uri, PetEntry.PARAM_MAX_Y);
+        if (building < 0 || minX > maxX || minY > maxY) {
+            throw new IllegalArgumentException("Invalid kennel area " + uri);
+        }
+
+        String[] exactArgs = { String.valueOf(building), String.valueOf(minX),
+                String.valueOf(maxX), String.valueOf(minY), String.valueOf(maxY) };
+        if (!hasKennelRtree) {
+            return exactArgs;
+        }
+        String[] rtreeArgs = { String.valueOf(building), String.valueOf(building),
+                String.valueOf(minX), String.valueOf(maxX), String.valueOf(minY),
+                String.valueOf(maxY) };
+        return DatabaseUtils.appendSelectionArgs(rtreeArgs, exactArgs);
+    }
+
+    // Returns the given integer query parameter of the URI
+    private static int getIntParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Missing or invalid " + name + " in " + uri);
+        }
+    }
+
+    // Returns the given finite coordinate query parameter of the URI
+    private static double getCoordinateParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        double coordinate;
+        try {
+            coordinate = value == null ? Double.NaN : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            coordinate = Double.NaN;
+        }
+        if (Double.isNaN(coordinate) || Double.isInfinite(coordinate)) {
+            throw new IllegalArgumentException("Missing or invalid " + name + " in " + uri);
+        }
+        return coordinate;
+    }
+
+    /*
+    * Callers write their selection against the columns of the pet details view (for example
+    * "breed=?"). Updates and deletes go to the pets table, so a caller selection is matched
+    * against the view and applied to the pets with those IDs.
+    * */
+    private static String toTableSelection(String selection) {
+        // No selection, or the single pet selection built for PET_ID, work on the table as is
+        if (TextUtils.isEmpty(selection) || selection.equals(PetEntry._ID + "=?")) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetEntry.VIEW_NAME +
+                " WHERE " + selection + ")";
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -288,6 +1734,20 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PETS_SUMMARY:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_HISTORY:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_AREA:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_SECTIONS:
+                return SectionEntry.CONTENT_LIST_TYPE;
+            case PET_MEDICAL:
+                return MedicalEntry.CONTENT_LIST_TYPE;
+            case PET_MEDICAL_ID:
+                return MedicalEntry.CONTENT_ITEM_TYPE;
+            case BACKUP:
+                return PetContract.BACKUP_MIME_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
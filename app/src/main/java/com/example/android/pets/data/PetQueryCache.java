@@ -0,0 +1,183 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+/**
+ * Memory-bounded cache of {@link PetProvider} query results.
+ *
+ * Results are copied out of SQLite into plain arrays and every hit is served as a new
+ * {@link MatrixCursor}, so clients never share cursor position or close state. Any insert,
+ * update or delete invalidates the whole cache, since every cached query reads the pets table.
+ */
+final class PetQueryCache {
+
+    // Results with more rows than this are returned straight from SQLite and aren't cached
+    private static final int MAX_CACHED_ROWS = 2000;
+
+    // Rough per-cell overhead of a boxed value in the cached row arrays
+    private static final int CELL_OVERHEAD_BYTES = 16;
+
+    // Separates the parts of a cache key. Can't appear in a URI or in SQL written by callers.
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final LruCache<String, CachedResult> mCache;
+
+    // Bumped by every invalidation. A query result is only cached if no mutation happened
+    // between the start of the query and the put.
+    private long mGeneration;
+
+    PetQueryCache(int maxSizeBytes) {
+        mCache = new LruCache<String, CachedResult>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, CachedResult value) {
+                return value.mSizeBytes;
+            }
+        };
+    }
+
+    /**
+     * Returns the key for a query. Queries with the same URI match, projection, selection,
+     * arguments and sort order share a key.
+     */
+    static String makeKey(int match, Uri uri, String[] projection, String selection,
+                          String[] selectionArgs, String sortOrder) {
+        StringBuilder key = new StringBuilder();
+        key.append(match).append(KEY_SEPARATOR).append(uri).append(KEY_SEPARATOR);
+        if (projection == null) {
+            key.append('*');
+        } else {
+            for (String column : projection) {
+                key.append(column).append(',');
+            }
+        }
+        key.append(KEY_SEPARATOR).append(selection).append(KEY_SEPARATOR);
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                key.append(arg).append(KEY_SEPARATOR);
+            }
+        }
+        key.append(KEY_SEPARATOR).append(sortOrder);
+        return key.toString();
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put} for a query that is about to run.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns a new cursor over the cached result for the given key, or null on a miss.
+     */
+    Cursor get(String key) {
+        CachedResult result = mCache.get(key);
+        return result == null ? null : result.newCursor();
+    }
+
+    /**
+     * Caches the rows of the given cursor if it is small enough and nothing was invalidated
+     * since {@code generation} was read. Returns the cursor the caller should hand out: a cursor
+     * over the cached copy (the given cursor is then closed), or the given cursor itself.
+     */
+    Cursor put(String key, long generation, Cursor cursor) {
+        if (cursor.getCount() > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+
+        CachedResult result;
+        try {
+            result = new CachedResult(cursor);
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(key, result);
+            }
+        }
+        return result.newCursor();
+    }
+
+    /**
+     * Drops every cached result. Called after each successful mutation of the pets table.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns hit, miss and size statistics, e.g. "LruCache[maxSize=..,hits=..,misses=..]".
+     */
+    String getStats() {
+        return mCache.toString() + " size=" + mCache.size();
+    }
+
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    // Immutable copy of the rows of a query result
+    private static final class CachedResult {
+        final String[] mColumnNames;
+        final Object[][] mRows;
+        final int mSizeBytes;
+
+        CachedResult(Cursor cursor) {
+            mColumnNames = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+
+            int columnCount = mColumnNames.length;
+            int sizeBytes = 0;
+            int row = 0;
+            cursor.moveToPosition(-1);
+            while (row < mRows.length && cursor.moveToNext()) {
+                Object[] values = new Object[columnCount];
+                for (int column = 0; column < columnCount; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[column] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[column] = cursor.getDouble(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String string = cursor.getString(column);
+                            values[column] = string;
+                            sizeBytes += string.length() * 2;
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            values[column] = blob;
+                            sizeBytes += blob.length;
+                            break;
+                        default:
+                            values[column] = null;
+                    }
+                    sizeBytes += CELL_OVERHEAD_BYTES;
+                }
+                mRows[row++] = values;
+            }
+            mSizeBytes = Math.max(1, sizeBytes);
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(mColumnNames, mRows.length);
+            for (Object[] values : mRows) {
+                if (values != null) {
+                    cursor.addRow(values);
+                }
+            }
+            return cursor;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only, column-oriented copy of the catalog summary.
+ *
+ * Every column is held in its own primitive array so a browsing list does not need to keep a
+ * {@link Cursor} (and its native CursorWindow) open. Breeds repeat a lot, so they are
+ * dictionary-encoded: each row stores an index into {@link #mBreedDictionary} and each distinct
+ * breed String is held only once. Next medical due dates are kept when the cursor comes from
+ * {@link PetEntry#SUMMARY_URI}, so the list can show its due badges.
+ */
+public final class PetSnapshot {
+
+    // Breed code used for rows without a breed
+    private static final int NO_BREED = -1;
+    // Due date of rows without a pending medical record, later than any time
+    private static final long NO_DUE_DATE = Long.MAX_VALUE;
+
+    /** Snapshot with zero rows, used when the provider returns no cursor */
+    public static final PetSnapshot EMPTY = new PetSnapshot(
+            new long[0], new String[0], new int[0], new String[0], new int[0], new int[0],
+            new long[0]);
+
+    private final long[] mIds;
+    private final String[] mNames;
+    private final int[] mBreedCodes;
+    private final String[] mBreedDictionary;
+    private final int[] mGenders;
+    private final int[] mWeights;
+    private final long[] mNextMedicalDueDates;
+
+    private PetSnapshot(long[] ids, String[] names, int[] breedCodes, String[] breedDictionary,
+                        int[] genders, int[] weights, long[] nextMedicalDueDates) {
+        mIds = ids;
+        mNames = names;
+        mBreedCodes = breedCodes;
+        mBreedDictionary = breedDictionary;
+        mGenders = genders;
+        mWeights = weights;
+        mNextMedicalDueDates = nextMedicalDueDates;
+    }
+
+    /**
+     * Copies every row of the given cursor into a new snapshot. The cursor must contain the
+     * {@link PetEntry#_ID}, {@link PetEntry#COLUMN_PET_NAME}, {@link PetEntry#COLUMN_PET_BREED},
+     * {@link PetEntry#COLUMN_PET_GENDER} and {@link PetEntry#COLUMN_PET_WEIGHT} columns, and may
+     * contain {@link PetEntry#COLUMN_NEXT_MEDICAL_DUE_DATE}. The cursor is not closed.
+     */
+    public static PetSnapshot fromCursor(Cursor cursor) {
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] names = new String[count];
+        int[] breedCodes = new int[count];
+        int[] genders = new int[count];
+        int[] weights = new int[count];
+        long[] nextMedicalDueDates = new long[count];
+
+        // Look up column indexes once instead of once per row
+        int idColumn = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+        int genderColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER);
+        int weightColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT);
+        int nextDueColumn = cursor.getColumnIndex(PetEntry.COLUMN_NEXT_MEDICAL_DUE_DATE);
+
+        // Maps each distinct breed to its position in the dictionary
+        HashMap<String, Integer> breedCodesByName = new HashMap<String, Integer>();
+
+        int row = 0;
+        cursor.moveToPosition(-1);
+        while (row < count && cursor.moveToNext()) {
+            ids[row] = cursor.getLong(idColumn);
+            names[row] = cursor.getString(nameColumn);
+            genders[row] = cursor.getInt(genderColumn);
+            weights[row] = cursor.getInt(weightColumn);
+            nextMedicalDueDates[row] = nextDueColumn == -1 || cursor.isNull(nextDueColumn)
+                    ? NO_DUE_DATE : cursor.getLong(nextDueColumn);
+
+            String breed = cursor.getString(breedColumn);
+            if (breed == null) {
+                breedCodes[row] = NO_BREED;
+            } else {
+                Integer code = breedCodesByName.get(breed);
+                if (code == null) {
+                    code = breedCodesByName.size();
+                    breedCodesByName.put(breed, code);
+                }
+                breedCodes[row] = code;
+            }
+            row++;
+        }
+
+        String[] breedDictionary = new String[breedCodesByName.size()];
+        for (Map.Entry<String, Integer> entry : breedCodesByName.entrySet()) {
+            breedDictionary[entry.getValue()] = entry.getKey();
+        }
+
+        return new PetSnapshot(ids, names, breedCodes, breedDictionary, genders, weights,
+                nextMedicalDueDates);
+    }
+
+    /** Returns the number of pets in the snapshot */
+    public int getCount() {
+        return mIds.length;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    /** Returns the breed of the pet at the given position, or null if it has none */
+    public String getBreed(int position) {
+        int code = mBreedCodes[position];
+        return code == NO_BREED ? null : mBreedDictionary[code];
+    }
+
+    public int getGender(int position) {
+        return mGenders[position];
+    }
+
+    public int getWeight(int position) {
+        return mWeights[position];
+    }
+
+    /** Returns whether a medical record of the pet at the given position is due at the time */
+    public boolean isMedicalDue(int position, long nowMillis) {
+        return mNextMedicalDueDates[position] <= nowMillis;
+    }
+}
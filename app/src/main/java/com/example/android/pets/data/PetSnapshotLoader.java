@@ -0,0 +1,123 @@
+package com.example.android.pets.data;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link AsyncTaskLoader} that queries the pets summary and copies the result into a
+ * {@link PetSnapshot}. The cursor is closed as soon as the snapshot has been built, and the
+ * loader reloads whenever the pets content URI changes.
+ *
+ * Debug builds log the heap each snapshot takes, to compare with the CursorWindow the cursor
+ * mode keeps open. Measuring collects garbage twice, so it is not done in release builds.
+ */
+public class PetSnapshotLoader extends AsyncTaskLoader<PetSnapshot> {
+
+    private static final String LOG_TAG = PetSnapshotLoader.class.getSimpleName();
+
+    // Columns copied into the snapshot
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_NEXT_MEDICAL_DUE_DATE};
+
+    // Pet count the logged heap use is scaled to
+    private static final int HEAP_REPORT_PETS = 100000;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered;
+    private PetSnapshot mSnapshot;
+
+    public PetSnapshotLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    public PetSnapshot loadInBackground() {
+        Cursor cursor = getContext().getContentResolver().query(
+                PetEntry.SUMMARY_URI,   // Summary URI, for the medical due badges
+                PROJECTION,             // Projection
+                null,                   // Selection
+                null,                   // SelectionArgs
+                PetEntry.SECTION_SORT_ORDER);   // Sections order, for the fast scroll index
+
+        if (cursor == null) {
+            return PetSnapshot.EMPTY;
+        }
+        try {
+            if (!PetOperationLog.ENABLED) {
+                return PetSnapshot.fromCursor(cursor);
+            }
+            long heapBefore = getUsedHeapBytes();
+            PetSnapshot snapshot = PetSnapshot.fromCursor(cursor);
+            long heapBytes = getUsedHeapBytes() - heapBefore;
+            int count = snapshot.getCount();
+            Log.d(LOG_TAG, "Snapshot of " + count + " pets takes " + heapBytes / 1024
+                    + " KB of heap" + (count == 0 ? "" : ", "
+                    + heapBytes * HEAP_REPORT_PETS / count / 1024 + " KB per "
+                    + HEAP_REPORT_PETS + " pets"));
+            return snapshot;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the bytes of heap in use after collecting garbage
+    private static long getUsedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Override
+    public void deliverResult(PetSnapshot data) {
+        if (isReset()) {
+            return;
+        }
+        mSnapshot = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        // Watch the pets URI so that inserts, updates and deletes trigger a reload
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    PetEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mSnapshot = null;
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+    }
+}
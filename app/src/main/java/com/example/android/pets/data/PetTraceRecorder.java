@@ -0,0 +1,366 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Records every operation {@link PetProvider} serves to a trace file, one JSON object per line,
+ * for {@link PetTraceReplayer} to run again. Recording is started and stopped with
+ * {@link PetContract#METHOD_START_TRACE} and {@link PetContract#METHOD_STOP_TRACE}.
+ *
+ * Each line holds the operation under "op", its URI and URI matcher code, the time since the
+ * trace started under "at" and how long it took under "micros", both in microseconds, and the
+ * number of rows it returned or changed under "rows". Queries add their projection, selection,
+ * arguments and sort order, writes their values and calls their method, arg and extras.
+ * Operations that throw aren't recorded.
+ */
+final class PetTraceRecorder {
+
+    private static final String LOG_TAG = PetTraceRecorder.class.getSimpleName();
+
+    /** Operations, the "op" of a trace line */
+    static final String OP_QUERY = "query";
+    static final String OP_INSERT = "insert";
+    static final String OP_BULK_INSERT = "bulkInsert";
+    static final String OP_UPDATE = "update";
+    static final String OP_DELETE = "delete";
+    static final String OP_CALL = "call";
+
+    /** Keys of a trace line */
+    static final String KEY_OP = "op";
+    static final String KEY_AT = "at";
+    static final String KEY_MICROS = "micros";
+    static final String KEY_MATCH = "match";
+    static final String KEY_URI = "uri";
+    static final String KEY_PROJECTION = "projection";
+    static final String KEY_SELECTION = "selection";
+    static final String KEY_SELECTION_ARGS = "args";
+    static final String KEY_SORT_ORDER = "sort";
+    static final String KEY_VALUES = "values";
+    static final String KEY_METHOD = "method";
+    static final String KEY_ARG = "arg";
+    static final String KEY_EXTRAS = "extras";
+    static final String KEY_ROWS = "rows";
+
+    // Types of call extras. Each extra is written as an object with its type as the only key,
+    // so it can be put back into a Bundle with the same getter.
+    static final String TYPE_STRING = "String";
+    static final String TYPE_INT = "int";
+    static final String TYPE_LONG = "long";
+    static final String TYPE_BOOLEAN = "boolean";
+    static final String TYPE_LONG_ARRAY = "long[]";
+    static final String TYPE_STRING_ARRAY = "String[]";
+    static final String TYPE_CONTENT_VALUES = "ContentValues";
+
+    private final File mFile;
+    private final Writer mWriter;
+    private final long mStartNanos = System.nanoTime();
+    private int mCount;
+    private boolean mStopped;
+
+    private PetTraceRecorder(File file) throws IOException {
+        mFile = file;
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+
+    /**
+     * Starts a new trace in the given file, replacing it.
+     */
+    static PetTraceRecorder start(File file) throws IOException {
+        Log.d(LOG_TAG, "Recording provider trace to " + file);
+        return new PetTraceRecorder(file);
+    }
+
+    /**
+     * Stops recording and closes the trace file.
+     *
+     * @return the number of operations recorded
+     */
+    synchronized int stop() throws IOException {
+        if (!mStopped) {
+            mStopped = true;
+            mWriter.close();
+            Log.d(LOG_TAG, "Recorded " + mCount + " operations to " + mFile);
+        }
+        return mCount;
+    }
+
+    void recordQuery(int match, Uri uri, String[] projection, String selection,
+                     String[] selectionArgs, String sortOrder, int rows, long startNanos) {
+        JSONObject line = newLine(OP_QUERY, match, uri, rows, startNanos);
+        try {
+            line.put(KEY_PROJECTION, toJson(projection));
+            line.put(KEY_SELECTION, selection);
+            line.put(KEY_SELECTION_ARGS, toJson(selectionArgs));
+            line.put(KEY_SORT_ORDER, sortOrder);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to record query of " + uri, e);
+            return;
+        }
+        write(line);
+    }
+
+    void recordInsert(int match, Uri uri, ContentValues values, int rows, long startNanos) {
+        JSONObject line = newLine(OP_INSERT, match, uri, rows, startNanos);
+        try {
+            line.put(KEY_VALUES, toJson(values));
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to record insert into " + uri, e);
+            return;
+        }
+        write(line);
+    }
+
+    void recordBulkInsert(int match, Uri uri, ContentValues[] values, int rows,
+                          long startNanos) {
+        JSONObject line = newLine(OP_BULK_INSERT, match, uri, rows, startNanos);
+        try {
+            JSONArray array = new JSONArray();
+            for (ContentValues row : values) {
+                array.put(toJson(row));
+            }
+            line.put(KEY_VALUES, array);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to record bulk insert into " + uri, e);
+            return;
+        }
+        write(line);
+    }
+
+    /**
+     * Records an update, or a delete if the values are null.
+     */
+    void recordWrite(int match, Uri uri, ContentValues values, String selection,
+                     String[] selectionArgs, int rows, long startNanos) {
+        JSONObject line = newLine(values == null ? OP_DELETE : OP_UPDATE, match, uri, rows,
+                startNanos);
+        try {
+            if (values != null) {
+                line.put(KEY_VALUES, toJson(values));
+            }
+            line.put(KEY_SELECTION, selection);
+            line.put(KEY_SELECTION_ARGS, toJson(selectionArgs));
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to record write to " + uri, e);
+            return;
+        }
+        write(line);
+    }
+
+    void recordCall(String method, String arg, Bundle extras, int rows, long startNanos) {
+        JSONObject line = newLine(OP_CALL, -1, null, rows, startNanos);
+        try {
+            line.put(KEY_METHOD, method);
+            line.put(KEY_ARG, arg);
+            line.put(KEY_EXTRAS, toJson(extras));
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to record call of " + method, e);
+            return;
+        }
+        write(line);
+    }
+
+    /**
+     * Returns the number of rows a call result counts as: the pets it lists, or else the pets it
+     * changed.
+     */
+    static int countRows(Bundle result) {
+        if (result == null) {
+            return 0;
+        }
+        long[] ids = result.getLongArray(PetContract.EXTRA_IDS);
+        return ids != null ? ids.length : result.getInt(PetContract.EXTRA_PET_COUNT);
+    }
+
+    // Returns a trace line with the fields every operation has
+    private JSONObject newLine(String op, int match, Uri uri, int rows, long startNanos) {
+        long nowNanos = System.nanoTime();
+        JSONObject line = new JSONObject();
+        try {
+            line.put(KEY_OP, op);
+            line.put(KEY_AT, (startNanos - mStartNanos) / 1000);
+            line.put(KEY_MICROS, (nowNanos - startNanos) / 1000);
+            if (uri != null) {
+                line.put(KEY_MATCH, match);
+                line.put(KEY_URI, uri.toString());
+            }
+            line.put(KEY_ROWS, rows);
+        } catch (JSONException e) {
+            // Only thrown for non-finite numbers
+            throw new IllegalStateException(e);
+        }
+        return line;
+    }
+
+    private synchronized void write(JSONObject line) {
+        if (mStopped) {
+            return;
+        }
+        try {
+            mWriter.write(line.toString());
+            mWriter.write('\n');
+            mCount++;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write to " + mFile + ", recording stopped", e);
+            mStopped = true;
+        }
+    }
+
+    private static JSONArray toJson(String[] strings) {
+        if (strings == null) {
+            return null;
+        }
+        JSONArray array = new JSONArray();
+        for (String string : strings) {
+            array.put(string == null ? JSONObject.NULL : string);
+        }
+        return array;
+    }
+
+    private static JSONObject toJson(ContentValues values) throws JSONException {
+        if (values == null) {
+            return null;
+        }
+        JSONObject object = new JSONObject();
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            Object value = entry.getValue();
+            if (value instanceof byte[]) {
+                // The provider has no blob columns, so there is nothing to replay
+                continue;
+            }
+            object.put(entry.getKey(), value == null ? JSONObject.NULL : value);
+        }
+        return object;
+    }
+
+    private static JSONObject toJson(Bundle extras) throws JSONException {
+        if (extras == null) {
+            return null;
+        }
+        JSONObject object = new JSONObject();
+        for (String key : extras.keySet()) {
+            Object value = extras.get(key);
+            JSONObject typed = new JSONObject();
+            if (value instanceof String) {
+                typed.put(TYPE_STRING, value);
+            } else if (value instanceof Integer) {
+                typed.put(TYPE_INT, value);
+            } else if (value instanceof Long) {
+                typed.put(TYPE_LONG, value);
+            } else if (value instanceof Boolean) {
+                typed.put(TYPE_BOOLEAN, value);
+            } else if (value instanceof long[]) {
+                JSONArray array = new JSONArray();
+                for (long element : (long[]) value) {
+                    array.put(element);
+                }
+                typed.put(TYPE_LONG_ARRAY, array);
+            } else if (value instanceof String[]) {
+                typed.put(TYPE_STRING_ARRAY, toJson((String[]) value));
+            } else if (value instanceof ContentValues) {
+                typed.put(TYPE_CONTENT_VALUES, toJson((ContentValues) value));
+            } else {
+                Log.w(LOG_TAG, "Not recording extra " + key + " of unsupported type");
+                continue;
+            }
+            object.put(key, typed);
+        }
+        return object;
+    }
+
+    /**
+     * Reads the strings written by {@link #toJson(String[])}, or null.
+     */
+    static String[] toStrings(JSONArray array) throws JSONException {
+        if (array == null) {
+            return null;
+        }
+        String[] strings = new String[array.length()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = array.isNull(i) ? null : array.getString(i);
+        }
+        return strings;
+    }
+
+    /**
+     * Reads the values written by {@link #toJson(ContentValues)}, or null. JSON keeps whether
+     * a number was an integer, so integer columns are put back as Integer or Long.
+     */
+    static ContentValues toContentValues(JSONObject object) throws JSONException {
+        if (object == null) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = object.get(key);
+            if (value == JSONObject.NULL) {
+                values.putNull(key);
+            } else if (value instanceof Integer) {
+                values.put(key, (Integer) value);
+            } else if (value instanceof Long) {
+                values.put(key, (Long) value);
+            } else if (value instanceof Number) {
+                values.put(key, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                values.put(key, (Boolean) value);
+            } else {
+                values.put(key, value.toString());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads the extras written by {@link #toJson(Bundle)}, or null.
+     */
+    static Bundle toBundle(JSONObject object) throws JSONException {
+        if (object == null) {
+            return null;
+        }
+        Bundle extras = new Bundle();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            JSONObject typed = object.getJSONObject(key);
+            if (typed.has(TYPE_STRING)) {
+                extras.putString(key, typed.getString(TYPE_STRING));
+            } else if (typed.has(TYPE_INT)) {
+                extras.putInt(key, typed.getInt(TYPE_INT));
+            } else if (typed.has(TYPE_LONG)) {
+                extras.putLong(key, typed.getLong(TYPE_LONG));
+            } else if (typed.has(TYPE_BOOLEAN)) {
+                extras.putBoolean(key, typed.getBoolean(TYPE_BOOLEAN));
+            } else if (typed.has(TYPE_LONG_ARRAY)) {
+                JSONArray array = typed.getJSONArray(TYPE_LONG_ARRAY);
+                long[] longs = new long[array.length()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = array.getLong(i);
+                }
+                extras.putLongArray(key, longs);
+            } else if (typed.has(TYPE_STRING_ARRAY)) {
+                extras.putStringArray(key, toStrings(typed.getJSONArray(TYPE_STRING_ARRAY)));
+            } else if (typed.has(TYPE_CONTENT_VALUES)) {
+                extras.putParcelable(key,
+                        toContentValues(typed.getJSONObject(TYPE_CONTENT_VALUES)));
+            }
+        }
+        return extras;
+    }
+}
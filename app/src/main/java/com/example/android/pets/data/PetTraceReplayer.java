@@ -0,0 +1,379 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a trace written by {@link PetTraceRecorder} against a fresh {@link PetProvider}, to see
+ * how a schema, index or query change holds up under traffic that really happened.
+ *
+ * The replay provider serves its own copy of the database as it was when the trace started, so
+ * with one thread the operations find the same rows and get the same IDs as when they were
+ * recorded. Operations are replayed in trace order, as fast as possible or at their recorded
+ * times, spread over any number of threads. The report has the throughput and the latency
+ * percentiles of the replay, and the latencies of each kind of operation are logged next to
+ * the recorded ones.
+ *
+ * The replay provider doesn't notify the app's observers, record to the debug operation log or
+ * cursor tracker, or count its queries, so the app running next to a replay isn't affected.
+ * Replays run one at a time since they share the replay database.
+ */
+final class PetTraceReplayer {
+
+    private static final String LOG_TAG = PetTraceReplayer.class.getSimpleName();
+
+    /** Name, in the databases directory, of the database a replay runs against */
+    static final String REPLAY_DATABASE_NAME = "shelter-replay.db";
+
+    // Calls that manage the provider's files rather than serve the app. Replaying them would
+    // replace the real backup, kiosk snapshot or trace, so they are left out.
+    private static final List<String> SKIPPED_METHODS = Arrays.asList(
+            PetContract.METHOD_BACKUP,
+            PetContract.METHOD_RESTORE,
+            PetContract.METHOD_EXPORT_KIOSK_SNAPSHOT,
+            PetContract.METHOD_START_TRACE,
+            PetContract.METHOD_STOP_TRACE,
+            PetContract.METHOD_REPLAY_TRACE);
+
+    /** Percentiles of the latencies in a report, the last one being the maximum */
+    static final double[] PERCENTILES = {50, 90, 99, 100};
+
+    private PetTraceReplayer() {
+    }
+
+    /** Outcome of a replay */
+    static final class Report {
+        final int mOperations;
+        // Operations that threw
+        final int mFailures;
+        // Operations that returned or changed a different number of rows than recorded
+        final int mDiverged;
+        final long mMillis;
+        // Latencies of the operations that succeeded, in microseconds, at PERCENTILES
+        final long[] mLatencyMicros;
+
+        Report(int operations, int failures, int diverged, long millis, long[] latencyMicros) {
+            mOperations = operations;
+            mFailures = failures;
+            mDiverged = diverged;
+            mMillis = millis;
+            mLatencyMicros = latencyMicros;
+        }
+
+        long getOperationsPerSecond() {
+            return mOperations * 1000L / Math.max(1, mMillis);
+        }
+    }
+
+    /**
+     * Replays a trace.
+     *
+     * @param startState the database the trace started from, a new empty one is used if it
+     *                   doesn't exist
+     * @param threads    number of threads running operations, at least 1
+     * @param realTime   true to start each operation no earlier than it was recorded, false to
+     *                   run them as fast as possible
+     */
+    static synchronized Report replay(Context context, File trace, File startState,
+                                      int threads, boolean realTime) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Replay requires at least one thread");
+        }
+        List<Operation> operations = read(trace);
+
+        context.deleteDatabase(REPLAY_DATABASE_NAME);
+        if (startState.isFile()) {
+            PetBackup.copyFile(startState, context.getDatabasePath(REPLAY_DATABASE_NAME));
+        }
+        PetProvider provider = new PetProvider(REPLAY_DATABASE_NAME);
+        provider.attachInfo(context, null);
+        try {
+            // Opening and migrating the copy isn't part of the replay
+            provider.awaitWarmUp();
+            Report report = run(provider, operations, threads, realTime);
+            Log.d(LOG_TAG, "Replayed " + report.mOperations + " operations of " + trace
+                    + " on " + threads + " threads in " + report.mMillis + " ms ("
+                    + report.getOperationsPerSecond() + " operations/s), "
+                    + report.mFailures + " failed, " + report.mDiverged
+                    + " diverged, latency " + describe(report.mLatencyMicros));
+            logLatencies(operations);
+            return report;
+        } finally {
+            provider.shutdown();
+            context.deleteDatabase(REPLAY_DATABASE_NAME);
+        }
+    }
+
+    // Reads the operations of a trace, leaving out the skipped calls
+    private static List<Operation> read(File trace) throws IOException {
+        List<Operation> operations = new ArrayList<Operation>();
+        int skipped = 0;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(trace), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                Operation operation = new Operation(new JSONObject(line));
+                if (operation.mMethod != null && SKIPPED_METHODS.contains(operation.mMethod)) {
+                    skipped++;
+                } else {
+                    operations.add(operation);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException("Invalid trace line in " + trace, e);
+        } finally {
+            reader.close();
+        }
+        if (skipped > 0) {
+            Log.d(LOG_TAG, "Skipping " + skipped + " file management calls of " + trace);
+        }
+        return operations;
+    }
+
+    /*
+    * Runs the operations on the given number of threads. Each thread takes the next operation
+    * in trace order, so with one thread the replay does exactly what was recorded.
+    * */
+    private static Report run(final PetProvider provider, final List<Operation> operations,
+                              int threads, final boolean realTime) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger diverged = new AtomicInteger();
+        final long startNanos = System.nanoTime();
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < operations.size()) {
+                        Operation operation = operations.get(index);
+                        if (realTime) {
+                            long waitMicros = operation.mAtMicros
+                                    - (System.nanoTime() - startNanos) / 1000;
+                            if (waitMicros > 1000) {
+                                SystemClock.sleep(waitMicros / 1000);
+                            }
+                        }
+                        long operationStartNanos = System.nanoTime();
+                        try {
+                            int rows = operation.run(provider);
+                            operation.mReplayedMicros =
+                                    (System.nanoTime() - operationStartNanos) / 1000;
+                            if (rows != operation.mRows) {
+                                diverged.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            Log.w(LOG_TAG, "Replayed " + operation + " failed", e);
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }, "PetTraceReplay-" + i);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            // Let the workers finish the operations they are running and stop
+            next.set(operations.size());
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replay interrupted");
+        }
+        long millis = (System.nanoTime() - startNanos) / 1000000;
+
+        List<Long> latencies = new ArrayList<Long>(operations.size());
+        for (Operation operation : operations) {
+            if (operation.mReplayedMicros >= 0) {
+                latencies.add(operation.mReplayedMicros);
+            }
+        }
+        return new Report(operations.size(), failures.get(), diverged.get(), millis,
+                percentiles(latencies));
+    }
+
+    // Logs the replayed and recorded latencies of each kind of operation
+    private static void logLatencies(List<Operation> operations) {
+        Map<String, List<Long>> replayed = new LinkedHashMap<String, List<Long>>();
+        Map<String, List<Long>> recorded = new LinkedHashMap<String, List<Long>>();
+        for (Operation operation : operations) {
+            String kind = operation.getKind();
+            if (!recorded.containsKey(kind)) {
+                replayed.put(kind, new ArrayList<Long>());
+                recorded.put(kind, new ArrayList<Long>());
+            }
+            recorded.get(kind).add(operation.mRecordedMicros);
+            if (operation.mReplayedMicros >= 0) {
+                replayed.get(kind).add(operation.mReplayedMicros);
+            }
+        }
+        for (String kind : recorded.keySet()) {
+            Log.d(LOG_TAG, kind + " x" + recorded.get(kind).size() + ": replayed "
+                    + describe(percentiles(replayed.get(kind))) + ", recorded "
+                    + describe(percentiles(recorded.get(kind))));
+        }
+    }
+
+    // Returns the latencies at PERCENTILES, by nearest rank, or zeros if there are none
+    static long[] percentiles(List<Long> latencies) {
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+
+        long[] result = new long[PERCENTILES.length];
+        if (sorted.length == 0) {
+            return result;
+        }
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            int rank = (int) Math.ceil(PERCENTILES[i] / 100 * sorted.length);
+            result[i] = sorted[Math.max(0, rank - 1)];
+        }
+        return result;
+    }
+
+    // Returns e.g. "p50=120us p90=480us p99=2100us max=9000us"
+    static String describe(long[] latencyMicros) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(PERCENTILES[i] == 100 ? "max" : "p" + (int) PERCENTILES[i])
+                    .append('=').append(latencyMicros[i]).append("us");
+        }
+        return builder.toString();
+    }
+
+    // One operation of a trace
+    private static final class Operation {
+        final String mOp;
+        final int mMatch;
+        final Uri mUri;
+        final String[] mProjection;
+        final String mSelection;
+        final String[] mSelectionArgs;
+        final String mSortOrder;
+        final ContentValues mValues;
+        final ContentValues[] mBulkValues;
+        final String mMethod;
+        final String mArg;
+        final Bundle mExtras;
+        final long mAtMicros;
+        final long mRecordedMicros;
+        final int mRows;
+        // Set by the thread that replayed the operation, -1 until it succeeded
+        volatile long mReplayedMicros = -1;
+
+        Operation(JSONObject line) throws JSONException {
+            mOp = line.getString(PetTraceRecorder.KEY_OP);
+            mMatch = line.optInt(PetTraceRecorder.KEY_MATCH, -1);
+            mUri = line.has(PetTraceRecorder.KEY_URI)
+                    ? Uri.parse(line.getString(PetTraceRecorder.KEY_URI)) : null;
+            mProjection = PetTraceRecorder.toStrings(
+                    line.optJSONArray(PetTraceRecorder.KEY_PROJECTION));
+            mSelection = optString(line, PetTraceRecorder.KEY_SELECTION);
+            mSelectionArgs = PetTraceRecorder.toStrings(
+                    line.optJSONArray(PetTraceRecorder.KEY_SELECTION_ARGS));
+            mSortOrder = optString(line, PetTraceRecorder.KEY_SORT_ORDER);
+            mMethod = optString(line, PetTraceRecorder.KEY_METHOD);
+            mArg = optString(line, PetTraceRecorder.KEY_ARG);
+            mExtras = PetTraceRecorder.toBundle(line.optJSONObject(PetTraceRecorder.KEY_EXTRAS));
+            mAtMicros = line.getLong(PetTraceRecorder.KEY_AT);
+            mRecordedMicros = line.getLong(PetTraceRecorder.KEY_MICROS);
+            mRows = line.getInt(PetTraceRecorder.KEY_ROWS);
+
+            JSONArray bulkValues = PetTraceRecorder.OP_BULK_INSERT.equals(mOp)
+                    ? line.getJSONArray(PetTraceRecorder.KEY_VALUES) : null;
+            if (bulkValues != null) {
+                mValues = null;
+                mBulkValues = new ContentValues[bulkValues.length()];
+                for (int i = 0; i < mBulkValues.length; i++) {
+                    mBulkValues[i] =
+                            PetTraceRecorder.toContentValues(bulkValues.getJSONObject(i));
+                }
+            } else {
+                mValues = PetTraceRecorder.toContentValues(
+                        line.optJSONObject(PetTraceRecorder.KEY_VALUES));
+                mBulkValues = null;
+            }
+            if (mUri == null && mMethod == null) {
+                throw new JSONException("Trace line has neither a URI nor a method: " + line);
+            }
+        }
+
+        // Runs the operation and returns the number of rows it returned or changed
+        int run(PetProvider provider) {
+            if (PetTraceRecorder.OP_QUERY.equals(mOp)) {
+                Cursor cursor = provider.query(mUri, mProjection, mSelection, mSelectionArgs,
+                        mSortOrder);
+                try {
+                    return cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (PetTraceRecorder.OP_INSERT.equals(mOp)) {
+                return provider.insert(mUri, mValues) == null ? 0 : 1;
+            }
+            if (PetTraceRecorder.OP_BULK_INSERT.equals(mOp)) {
+                return provider.bulkInsert(mUri, mBulkValues);
+            }
+            if (PetTraceRecorder.OP_UPDATE.equals(mOp)) {
+                return provider.update(mUri, mValues, mSelection, mSelectionArgs);
+            }
+            if (PetTraceRecorder.OP_DELETE.equals(mOp)) {
+                return provider.delete(mUri, mSelection, mSelectionArgs);
+            }
+            if (PetTraceRecorder.OP_CALL.equals(mOp)) {
+                return PetTraceRecorder.countRows(provider.call(mMethod, mArg, mExtras));
+            }
+            throw new IllegalArgumentException("Unknown trace operation " + mOp);
+        }
+
+        // Returns what the latencies are grouped by, e.g. "query 101" or "call getPetsById"
+        String getKind() {
+            return mOp + " " + (mMethod != null ? mMethod : String.valueOf(mMatch));
+        }
+
+        @Override
+        public String toString() {
+            return mOp + " " + (mMethod != null ? mMethod : mUri);
+        }
+
+        // Returns the string under the given key, or null if it is missing or null
+        private static String optString(JSONObject line, String key) throws JSONException {
+            return line.isNull(key) ? null : line.getString(key);
+        }
+    }
+}
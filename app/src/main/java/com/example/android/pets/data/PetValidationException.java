@@ -0,0 +1,58 @@
+package com.example.android.pets.data;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by {@link PetProvider} when one or more pets fail validation. The message is the
+ * message of the first error, so callers that only look at the message see the same text as
+ * for a single invalid pet. {@link #getErrors()} lists every error found.
+ */
+public class PetValidationException extends IllegalArgumentException {
+
+    /**
+     * A single failed check: which row of the request and which column, and why.
+     */
+    public static final class Error {
+        private final int mRow;
+        private final String mColumn;
+        private final String mMessage;
+
+        Error(int row, String column, String message) {
+            mRow = row;
+            mColumn = column;
+            mMessage = message;
+        }
+
+        /** Returns the index of the invalid row in the request, 0 for single row requests */
+        public int getRow() {
+            return mRow;
+        }
+
+        /** Returns the name of the invalid column, see {@link PetContract.PetEntry} */
+        public String getColumn() {
+            return mColumn;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public String toString() {
+            return "Row " + mRow + ", " + mColumn + ": " + mMessage;
+        }
+    }
+
+    private final List<Error> mErrors;
+
+    PetValidationException(List<Error> errors) {
+        super(errors.get(0).getMessage());
+        mErrors = Collections.unmodifiableList(errors);
+    }
+
+    /** Returns every validation error, in row order */
+    public List<Error> getErrors() {
+        return mErrors;
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates pet {@link ContentValues} against a per-column schema built once from
+ * {@link PetEntry}. Used by the provider for single inserts and updates as well as for bulk
+ * inserts, where all rows are checked before anything is written.
+ */
+final class PetValidator {
+
+    /*
+    * Check for a single column. A rule only looks at its column when the key is present, except
+    * on insert, where a column that is required on insert must be present.
+    * */
+    private static class ColumnRule {
+        final String mColumn;
+        final boolean mIsInteger;
+        final boolean mRequiredOnInsert;
+        final boolean mNullable;
+        final String mMessage;
+
+        ColumnRule(String column, boolean isInteger, boolean requiredOnInsert, boolean nullable,
+                   String message) {
+            mColumn = column;
+            mIsInteger = isInteger;
+            mRequiredOnInsert = requiredOnInsert;
+            mNullable = nullable;
+            mMessage = message;
+        }
+
+        // Range check for integer columns, overridden by rules that restrict the value
+        boolean isValidInteger(int value) {
+            return true;
+        }
+
+        // Returns whether the given non-null value is valid for this column
+        boolean isValid(Object value) {
+            if (!mIsInteger) {
+                return value instanceof String;
+            }
+            if (value instanceof Integer || value instanceof Long || value instanceof Short
+                    || value instanceof Byte) {
+                return isValidInteger(((Number) value).intValue());
+            }
+            if (value instanceof String) {
+                try {
+                    return isValidInteger(Integer.parseInt(((String) value).trim()));
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Check for a nullable kennel coordinate, any finite number
+    private static class CoordinateRule extends ColumnRule {
+        CoordinateRule(String column, String message) {
+            super(column, false, false, true, message);
+        }
+
+        @Override
+        boolean isValid(Object value) {
+            double coordinate;
+            if (value instanceof Number) {
+                coordinate = ((Number) value).doubleValue();
+            } else if (value instanceof String) {
+                try {
+                    coordinate = Double.parseDouble(((String) value).trim());
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            return !Double.isNaN(coordinate) && !Double.isInfinite(coordinate);
+        }
+    }
+
+    // The validation schema of the pets table
+    private static final ColumnRule[] RULES = {
+            new ColumnRule(PetEntry.COLUMN_PET_NAME, false, true, false,
+                    "Pet requires valid name"),
+            new ColumnRule(PetEntry.COLUMN_PET_BREED, false, false, true,
+                    "Pet requires valid breed"),
+            new ColumnRule(PetEntry.COLUMN_PET_GENDER, true, true, false,
+                    "Pet requires valid gender") {
+                @Override
+                boolean isValidInteger(int value) {
+                    return PetEntry.isValidGender(value);
+                }
+            },
+            new ColumnRule(PetEntry.COLUMN_PET_WEIGHT, true, false, false,
+                    "Pet requires valid weight") {
+                @Override
+                boolean isValidInteger(int value) {
+                    return value >= 0;
+                }
+            },
+            new ColumnRule(PetEntry.COLUMN_PET_STATUS, true, false, false,
+                    "Pet requires valid status") {
+                @Override
+                boolean isValidInteger(int value) {
+                    return PetEntry.isValidStatus(value);
+                }
+            },
+            new ColumnRule(PetEntry.COLUMN_PET_KENNEL_BUILDING, true, false, true,
+                    "Pet requires valid kennel building") {
+                @Override
+                boolean isValidInteger(int value) {
+                    return value >= 0;
+                }
+            },
+            new CoordinateRule(PetEntry.COLUMN_PET_KENNEL_X, "Pet requires valid kennel x"),
+            new CoordinateRule(PetEntry.COLUMN_PET_KENNEL_Y, "Pet requires valid kennel y"),
+    };
+
+    private PetValidator() {
+    }
+
+    /**
+     * Checks the values of a single pet.
+     *
+     * @param isInsert true for a new pet, false for an update of only the given columns
+     * @throws PetValidationException if any column is invalid
+     */
+    static void validate(ContentValues values, boolean isInsert) {
+        List<PetValidationException.Error> errors = collectErrors(values, isInsert, 0, null);
+        if (errors != null) {
+            throw new PetValidationException(errors);
+        }
+    }
+
+    /**
+     * Checks every pet of a bulk insert, reporting the errors of all rows at once.
+     *
+     * @throws PetValidationException if any row is invalid
+     */
+    static void validateInserts(ContentValues[] rows) {
+        List<PetValidationException.Error> errors = null;
+        for (int row = 0; row < rows.length; row++) {
+            errors = collectErrors(rows[row], true, row, errors);
+        }
+        if (errors != null) {
+            throw new PetValidationException(errors);
+        }
+    }
+
+    // Adds the errors of one row to the given list, creating it on the first error. Valid
+    // rows, the common case, don't allocate anything.
+    private static List<PetValidationException.Error> collectErrors(
+            ContentValues values, boolean isInsert, int row,
+            List<PetValidationException.Error> errors) {
+        for (ColumnRule rule : RULES) {
+            boolean valid;
+            if (!values.containsKey(rule.mColumn)) {
+                valid = !(isInsert && rule.mRequiredOnInsert);
+            } else {
+                Object value = values.get(rule.mColumn);
+                valid = value == null ? rule.mNullable : rule.isValid(value);
+            }
+
+            if (!valid) {
+                if (errors == null) {
+                    errors = new ArrayList<PetValidationException.Error>();
+                }
+                errors.add(new PetValidationException.Error(row, rule.mColumn, rule.mMessage));
+            }
+        }
+        return errors;
+    }
+}
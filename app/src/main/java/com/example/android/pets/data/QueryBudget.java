@@ -0,0 +1,74 @@
+package com.example.android.pets.data;
+
+import java.util.List;
+
+/**
+ * Most provider work a user action may do: database reads (queries and calls), writes, rows
+ * returned or touched in total, and cursors left open when it ends, e.g. the one a loader keeps
+ * for the list. Checked by {@link PetOperationLog.Flow#finish}.
+ */
+public final class QueryBudget {
+
+    /** Budget value for rows that aren't limited, e.g. deleting every pet */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int mMaxReads;
+    private final int mMaxWrites;
+    private final int mMaxRows;
+    private final int mMaxOpenCursors;
+
+    /**
+     * Budget for an action that leaves no cursor open.
+     */
+    public QueryBudget(int maxReads, int maxWrites, int maxRows) {
+        this(maxReads, maxWrites, maxRows, 0);
+    }
+
+    public QueryBudget(int maxReads, int maxWrites, int maxRows, int maxOpenCursors) {
+        mMaxReads = maxReads;
+        mMaxWrites = maxWrites;
+        mMaxRows = maxRows;
+        mMaxOpenCursors = maxOpenCursors;
+    }
+
+    /**
+     * Checks the operations of the given flow, the cursors it opened that are still open, and
+     * the number of cursors that were leaked while it ran.
+     *
+     * @return a description of how the flow went over the budget, listing every operation and
+     *         open cursor, or null if it stayed within every limit and leaked no cursor
+     */
+    String check(String flowName, List<PetOperationLog.Operation> operations,
+                 List<String> openCursors, int leakedCursors) {
+        int reads = 0;
+        int writes = 0;
+        long rows = 0;
+        for (PetOperationLog.Operation operation : operations) {
+            if (operation.isRead()) {
+                reads++;
+            } else {
+                writes++;
+            }
+            rows += operation.mRows;
+        }
+        if (reads <= mMaxReads && writes <= mMaxWrites && rows <= mMaxRows
+                && openCursors.size() <= mMaxOpenCursors && leakedCursors == 0) {
+            return null;
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append(flowName).append(" went over its budget: ")
+                .append(reads).append('/').append(mMaxReads).append(" reads, ")
+                .append(writes).append('/').append(mMaxWrites).append(" writes, ")
+                .append(rows).append('/').append(mMaxRows).append(" rows, ")
+                .append(openCursors.size()).append('/').append(mMaxOpenCursors)
+                .append(" open cursors, ").append(leakedCursors).append(" leaked cursors");
+        for (PetOperationLog.Operation operation : operations) {
+            message.append("\n  ").append(operation);
+        }
+        for (String openCursor : openCursors) {
+            message.append("\n  open ").append(openCursor);
+        }
+        return message.toString();
+    }
+}
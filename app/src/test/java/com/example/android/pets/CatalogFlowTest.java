@@ -0,0 +1,100 @@
+package com.example.android.pets;
+
+import android.content.DialogInterface;
+import android.content.res.Configuration;
+import android.support.v7.app.AlertDialog;
+
+import com.example.android.pets.data.PetOperationLog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowDialog;
+import org.robolectric.util.ActivityController;
+
+import static com.example.android.pets.PetFlowTests.assertWithinBudget;
+import static com.example.android.pets.PetFlowTests.awaitFlow;
+import static com.example.android.pets.PetFlowTests.countOperations;
+import static com.example.android.pets.PetFlowTests.countRows;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks the provider work of each catalog flow against its budget, and that writes aren't
+ * charged for the reloads they cause.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CatalogFlowTest {
+
+    private static final int PET_COUNT = 20;
+
+    @Before
+    public void setUp() {
+        // Release builds record nothing
+        assumeTrue(PetOperationLog.ENABLED);
+        PetFlowTests.setUpProvider();
+        PetFlowTests.insertPets(PET_COUNT);
+    }
+
+    @Test
+    public void launch_queriesPetsAndSectionsOnce() {
+        Robolectric.buildActivity(CatalogActivity.class).setup();
+
+        PetOperationLog.Flow flow = awaitFlow("Launch catalog");
+        assertWithinBudget(flow);
+        assertEquals(2, flow.getOperations().size());
+        assertEquals(2, countOperations(flow, PetOperationLog.TYPE_QUERY));
+    }
+
+    @Test
+    public void rotate_reusesLoadedPets() {
+        ActivityController<CatalogActivity> controller =
+                Robolectric.buildActivity(CatalogActivity.class).setup();
+        awaitFlow("Launch catalog");
+
+        Configuration landscape =
+                new Configuration(RuntimeEnvironment.application.getResources().getConfiguration());
+        landscape.orientation = Configuration.ORIENTATION_LANDSCAPE;
+        controller.configurationChange(landscape);
+
+        PetOperationLog.Flow flow = awaitFlow("Rotate catalog");
+        assertWithinBudget(flow);
+        assertTrue(flow.getOperations().isEmpty());
+    }
+
+    @Test
+    public void insertDummyPet_checksForItThenInserts() {
+        CatalogActivity activity = Robolectric.buildActivity(CatalogActivity.class).setup().get();
+        awaitFlow("Launch catalog");
+
+        shadowOf(activity).clickMenuItem(R.id.action_insert_dummy_data);
+
+        PetOperationLog.Flow flow = awaitFlow("Insert dummy pet");
+        assertWithinBudget(flow);
+        assertEquals(1, countOperations(flow, PetOperationLog.TYPE_INSERT));
+        // The reload the insert causes belongs to the catalog, not to this flow
+        assertEquals(0, countOperations(flow, PetOperationLog.TYPE_QUERY));
+    }
+
+    @Test
+    public void deleteAll_deletesWithoutQuerying() {
+        CatalogActivity activity = Robolectric.buildActivity(CatalogActivity.class).setup().get();
+        awaitFlow("Launch catalog");
+
+        shadowOf(activity).clickMenuItem(R.id.action_delete_all_entries);
+        AlertDialog dialog = (AlertDialog) ShadowDialog.getLatestDialog();
+        dialog.getButton(DialogInterface.BUTTON_POSITIVE).performClick();
+
+        PetOperationLog.Flow flow = awaitFlow("Delete all pets");
+        assertWithinBudget(flow);
+        assertEquals(1, flow.getOperations().size());
+        assertEquals(PET_COUNT, countRows(flow, PetOperationLog.TYPE_DELETE));
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.pets;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.widget.EditText;
+
+import com.example.android.pets.data.PetOperationLog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static com.example.android.pets.PetFlowTests.assertWithinBudget;
+import static com.example.android.pets.PetFlowTests.awaitFlow;
+import static com.example.android.pets.PetFlowTests.countOperations;
+import static com.example.android.pets.PetFlowTests.countRows;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks the provider work of opening and saving a pet against the editor's budgets.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EditorFlowTest {
+
+    private Uri mPetUri;
+
+    @Before
+    public void setUp() {
+        // Release builds record nothing
+        assumeTrue(PetOperationLog.ENABLED);
+        PetFlowTests.setUpProvider();
+        mPetUri = PetFlowTests.insertPets(5);
+    }
+
+    @Test
+    public void openPet_queriesOneRow() {
+        openEditor(mPetUri);
+
+        PetOperationLog.Flow flow = awaitFlow("Open pet");
+        assertWithinBudget(flow);
+        assertEquals(1, countOperations(flow, PetOperationLog.TYPE_QUERY));
+        assertEquals(1, countRows(flow, PetOperationLog.TYPE_QUERY));
+    }
+
+    @Test
+    public void saveNewPet_insertsOnce() {
+        EditorActivity activity = openEditor(null);
+        ((EditText) activity.findViewById(R.id.edit_pet_name)).setText("Biscuit");
+        ((EditText) activity.findViewById(R.id.edit_pet_breed)).setText("Beagle");
+
+        shadowOf(activity).clickMenuItem(R.id.action_save);
+
+        PetOperationLog.Flow flow = awaitFlow("Save pet");
+        assertWithinBudget(flow);
+        // The duplicate check runs before the flow begins and isn't charged to it
+        assertEquals(1, flow.getOperations().size());
+        assertEquals(1, countOperations(flow, PetOperationLog.TYPE_INSERT));
+    }
+
+    @Test
+    public void saveEditedPet_updatesOneRow() {
+        EditorActivity activity = openEditor(mPetUri);
+        awaitFlow("Open pet");
+        ((EditText) activity.findViewById(R.id.edit_pet_name)).setText("Renamed");
+
+        shadowOf(activity).clickMenuItem(R.id.action_save);
+
+        PetOperationLog.Flow flow = awaitFlow("Save pet");
+        assertWithinBudget(flow);
+        assertEquals(1, flow.getOperations().size());
+        assertEquals(1, countRows(flow, PetOperationLog.TYPE_UPDATE));
+    }
+
+    private EditorActivity openEditor(Uri petUri) {
+        Intent intent = new Intent(RuntimeEnvironment.application, EditorActivity.class);
+        intent.setData(petUri);
+        return Robolectric.buildActivity(EditorActivity.class, intent).setup().get();
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetOperationLog;
+import com.example.android.pets.data.PetProvider;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Helpers for the flow tests: a provider to run against, pets in it, and the finished flows
+ * the activities recorded in {@link PetOperationLog}.
+ */
+final class PetFlowTests {
+
+    // Rounds of background and main thread work to wait for a flow to finish
+    private static final int MAX_ROUNDS = 200;
+    private static final long ROUND_PAUSE_MILLIS = 10;
+
+    private PetFlowTests() {
+    }
+
+    /** Registers a fresh {@link PetProvider} and forgets the flows of earlier tests */
+    static void setUpProvider() {
+        Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        PetOperationLog.clearFinishedFlows();
+    }
+
+    /** Inserts the given number of pets and returns the URI of the last one */
+    static Uri insertPets(int count) {
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        Uri petUri = null;
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, "Breed " + (i % 5));
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + i % 20);
+            petUri = resolver.insert(PetEntry.CONTENT_URI, values);
+        }
+        // The inserts above aren't part of any flow under test
+        PetOperationLog.clearFinishedFlows();
+        return petUri;
+    }
+
+    /**
+     * Runs queued tasks, loaders and main thread messages until the named flow has finished,
+     * and returns it. Fails if it never does.
+     */
+    static PetOperationLog.Flow awaitFlow(String name) {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            Robolectric.flushBackgroundThreadScheduler();
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            PetOperationLog.Flow flow = PetOperationLog.findFinishedFlow(name);
+            if (flow != null) {
+                return flow;
+            }
+            // The provider may still be warming up on its own thread
+            try {
+                Thread.sleep(ROUND_PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        fail("Flow \"" + name + "\" never finished");
+        return null;
+    }
+
+    /** Fails if the flow went over its budget */
+    static void assertWithinBudget(PetOperationLog.Flow flow) {
+        assertNull(flow.getName() + " went over budget", flow.getOverrun());
+    }
+
+    /** Returns the number of operations of the given type the flow recorded */
+    static int countOperations(PetOperationLog.Flow flow, int type) {
+        int count = 0;
+        for (PetOperationLog.Operation operation : flow.getOperations()) {
+            if (operation.mType == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Returns the rows the operations of the given type returned or touched in total */
+    static int countRows(PetOperationLog.Flow flow, int type) {
+        int rows = 0;
+        for (PetOperationLog.Operation operation : flow.getOperations()) {
+            if (operation.mType == type) {
+                rows += operation.mRows;
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that a flow fails when a cursor it opened is collected without being closed, however
+ * the collection closes it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CursorTrackerTest {
+
+    private static final QueryBudget BUDGET = new QueryBudget(1, 0, QueryBudget.UNLIMITED);
+
+    // Garbage collections to wait for a leaked cursor to be reported
+    private static final int MAX_COLLECTIONS = 100;
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        // Release builds don't track cursors
+        assumeTrue(PetOperationLog.ENABLED);
+        Robolectric.setupContentProvider(PetProvider.class, PetContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void closedCursor_staysWithinBudget() {
+        PetOperationLog.Flow flow = PetOperationLog.beginFlow("Close a cursor");
+        flow.enter();
+        try {
+            Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, null, null, null, null);
+            assertNotNull(cursor);
+            cursor.close();
+        } finally {
+            flow.exit();
+        }
+
+        assertTrue(flow.finish(BUDGET));
+        assertEquals(0, CursorTracker.getLeakCount(flow));
+    }
+
+    @Test
+    public void leakedCursor_failsFlow() {
+        PetOperationLog.Flow flow = PetOperationLog.beginFlow("Leak a cursor");
+        flow.enter();
+        try {
+            leakCursor(false);
+        } finally {
+            flow.exit();
+        }
+
+        awaitLeak(flow);
+        assertFalse(flow.finish(BUDGET));
+        assertTrue(flow.getOverrun().contains("1 leaked cursors"));
+    }
+
+    @Test
+    public void cursorClosedByFinalizer_failsFlow() {
+        PetOperationLog.Flow flow = PetOperationLog.beginFlow("Leak a wrapped cursor");
+        flow.enter();
+        try {
+            leakCursor(true);
+        } finally {
+            flow.exit();
+        }
+
+        awaitLeak(flow);
+        assertFalse(flow.finish(BUDGET));
+    }
+
+    // Queries pets and drops the cursor without closing it, optionally inside a wrapper whose
+    // finalizer closes it, as the one ContentResolver adds on a device does
+    private void leakCursor(boolean closedByFinalizer) {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(cursor);
+        if (closedByFinalizer) {
+            cursor = new ClosingCursorWrapper(cursor);
+        }
+        cursor.getCount();
+    }
+
+    // Collects garbage until the flow has a leaked cursor, and fails if it never does
+    private static void awaitLeak(PetOperationLog.Flow flow) {
+        for (int i = 0; i < MAX_COLLECTIONS; i++) {
+            System.gc();
+            System.runFinalization();
+            if (CursorTracker.getLeakCount(flow) > 0) {
+                return;
+            }
+        }
+        fail("The leaked cursor was never reported");
+    }
+
+    private static final class ClosingCursorWrapper extends CursorWrapper {
+
+        ClosingCursorWrapper(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                close();
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}